@@ -0,0 +1,64 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import config.GenericConfig;
+import graph.TopicManagerSingleton;
+
+/**
+ * Loading a {@link GenericConfig} of PlusAgents, each on its own two input
+ * topics and one output topic, one agent after another and in parallel.
+ * A call also closes the agents and clears the topics, so every load starts
+ * from an empty graph. Scores are per whole load; divide by {@code agents}
+ * for the cost per agent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ConfigBenchmarks {
+
+    @Param({"10000", "100000"})
+    int agents;
+
+    @Param({"sequential", "parallel"})
+    String load;
+
+    byte[] conf;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < agents; i++) {
+            sb.append("config.PlusAgent\n")
+                    .append("A").append(i).append(",B").append(i).append('\n')
+                    .append("C").append(i).append('\n');
+        }
+        conf = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void configLoad() {
+        GenericConfig config = new GenericConfig();
+        config.setParallelLoad(load.equals("parallel"));
+        config.create(new ByteArrayInputStream(conf));
+        config.close();
+        TopicManagerSingleton.get().clear();
+    }
+}
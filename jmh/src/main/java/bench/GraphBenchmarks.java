@@ -0,0 +1,216 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import config.CsrGraph;
+import config.ExecutionPlan;
+import config.Graph;
+import graph.Agent;
+import graph.Message;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+
+/**
+ * {@link Graph#createFromTopics()}, {@link Graph#hasCycles()} and the
+ * {@link CsrGraph} snapshot on synthetic topologies of {@code nodes} nodes
+ * (topics plus agents; narrow it with {@code -p nodes=1000}). Also one tick of
+ * a compiled {@link ExecutionPlan} over a layered topology, on the caller's
+ * thread and on the common ForkJoinPool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GraphBenchmarks {
+    static final int LAYER_WIDTH = 100;
+    static final int PLAN_NODES = 10000;
+    // Math.sqrt iterations per agent callback, so a layer has something worth spreading
+    static final int PLAN_WORK = 200;
+
+    @State(Scope.Thread)
+    public static class Topology {
+        @Param({"1000", "10000", "100000", "1000000"})
+        int nodes;
+
+        @Param({"chain", "layered"})
+        String shape;
+
+        Graph graph;
+        CsrGraph csr;
+
+        @Setup
+        public void setUp() {
+            buildTopology(nodes, Shape.valueOf(shape.toUpperCase()), 42);
+            graph = new Graph();
+            graph.createFromTopics();
+            csr = graph.toCsr();
+        }
+
+        @TearDown
+        public void tearDown() {
+            TopicManagerSingleton.get().clear();
+        }
+    }
+
+    @Benchmark
+    public Graph createFromTopics(Topology s) {
+        s.graph.createFromTopics();
+        return s.graph;
+    }
+
+    @Benchmark
+    public boolean hasCycles(Topology s) {
+        return s.graph.hasCycles();
+    }
+
+    @Benchmark
+    public CsrGraph toCsr(Topology s) {
+        return s.graph.toCsr();
+    }
+
+    @Benchmark
+    public boolean csrHasCycles(Topology s) {
+        return s.csr.hasCycles();
+    }
+
+    @State(Scope.Thread)
+    public static class Plan {
+        @Param({"none", "common"})
+        String pool;
+
+        ExecutionPlan plan;
+        Topic[] sources;
+        double x;
+        final Runnable publishSources = () -> {
+            for (Topic t : sources) {
+                t.publish(x);
+            }
+        };
+
+        @Setup
+        public void setUp() {
+            buildTopology(PLAN_NODES, Shape.LAYERED, 42);
+            TopicManager tm = TopicManagerSingleton.get();
+            for (Topic t : tm.getTopics()) {
+                for (Agent a : t.getSubs()) {
+                    ((SyntheticAgent) a).work = PLAN_WORK;
+                }
+            }
+            sources = new Topic[LAYER_WIDTH];
+            for (int i = 0; i < LAYER_WIDTH; i++) {
+                sources[i] = tm.getTopic("t" + i);
+            }
+            Graph graph = new Graph();
+            graph.createFromTopics();
+            plan = graph.compile();
+            plan.setPool(pool.equals("common") ? ForkJoinPool.commonPool() : null);
+            plan.install();
+        }
+
+        @TearDown
+        public void tearDown() {
+            plan.uninstall();
+            TopicManagerSingleton.get().clear();
+        }
+    }
+
+    @Benchmark
+    public void planTick(Plan s) {
+        s.x++;
+        s.plan.tick(s.publishSources);
+    }
+
+    /** Topology shapes: one long chain, or layers of {@value #LAYER_WIDTH} topics. */
+    enum Shape {
+        CHAIN,
+        LAYERED
+    }
+
+    /**
+     * Registers an acyclic topology of roughly {@code nodes} topics and agents
+     * in the shared TopicManager. Every agent subscribes to two topics and
+     * publishes one topic further down.
+     */
+    static void buildTopology(int nodes, Shape shape, long seed) {
+        TopicManager tm = TopicManagerSingleton.get();
+        tm.clear();
+        Random random = new Random(seed);
+        int topicCount = Math.max(2, nodes / 2);
+        Topic[] topics = new Topic[topicCount];
+        for (int i = 0; i < topicCount; i++) {
+            topics[i] = tm.getTopic("t" + i);
+        }
+        int width = shape == Shape.CHAIN ? 1 : LAYER_WIDTH;
+        for (int out = width; out < topicCount; out++) {
+            // inputs come from the previous layer (or anything earlier for a chain)
+            int layerStart = shape == Shape.CHAIN ? 0 : (out / width - 1) * width;
+            int layerEnd = shape == Shape.CHAIN ? out : layerStart + width;
+            Topic first = topics[out - width];
+            Topic second = topics[layerStart + random.nextInt(layerEnd - layerStart)];
+            new SyntheticAgent("s" + out, new Topic[]{first, second}, topics[out]);
+        }
+    }
+
+    /**
+     * Agent that mostly exists to create edges in the topic graph. When it is
+     * called it burns {@code work} iterations and publishes downstream.
+     */
+    static class SyntheticAgent implements Agent {
+        private final String name;
+        private final Topic pub;
+        int work;
+
+        SyntheticAgent(String name, Topic[] subs, Topic pub) {
+            this.name = name;
+            this.pub = pub;
+            for (Topic t : subs) {
+                t.subscribe(this);
+            }
+            pub.addPublisher(this);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void callback(String topic, Message msg) {
+            callback(topic, msg.asDouble);
+        }
+
+        @Override
+        public void callback(String topic, double value) {
+            double v = value;
+            for (int i = 0; i < work; i++) {
+                v = Math.sqrt(v + i);
+            }
+            pub.publish(v);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
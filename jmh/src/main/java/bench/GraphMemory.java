@@ -0,0 +1,65 @@
+package bench;
+
+import java.util.Locale;
+
+import config.CsrGraph;
+import config.Graph;
+import graph.TopicManagerSingleton;
+
+/**
+ * Compares the retained heap of the object {@link Graph} with its
+ * {@link CsrGraph} snapshot for a synthetic layered topology.
+ *
+ * <pre>
+ * gradle :jmh:graphMemory -Pedges=1000000
+ * </pre>
+ *
+ * The default is about 10^6 edges. Sizes are the growth in used heap after
+ * full collections, so run it with nothing else in the JVM and enough
+ * {@code -Xmx} for both representations.
+ */
+public class GraphMemory {
+
+    public static void main(String[] args) {
+        int edges = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        // Each synthetic agent brings about three edges and one extra topic
+        int nodes = edges * 2 / 3;
+
+        GraphBenchmarks.buildTopology(nodes, GraphBenchmarks.Shape.LAYERED, 42);
+        long base = usedHeap();
+
+        Graph graph = new Graph();
+        graph.createFromTopics();
+        long objectGraph = usedHeap() - base;
+
+        CsrGraph csr = graph.toCsr();
+        graph = null;
+        // The names now belong to the snapshot alone, so they count against it
+        long snapshot = usedHeap() - base;
+
+        System.out.printf(Locale.ROOT, "nodes=%d edges=%d%n", csr.nodeCount(), csr.edgeCount());
+        report("object Graph", objectGraph, csr.edgeCount());
+        report("CsrGraph", snapshot, csr.edgeCount());
+        System.out.printf(Locale.ROOT, "ratio %.1fx%n", (double) objectGraph / snapshot);
+        TopicManagerSingleton.get().clear();
+    }
+
+    private static void report(String label, long bytes, int edges) {
+        System.out.printf(Locale.ROOT, "%-14s %10.1f MB %8.1f B/edge%n", label, bytes / 1e6, (double) bytes / edges);
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Repeat until a collection frees nothing more
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = rt.totalMemory() - rt.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,45 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import graph.Message;
+
+/**
+ * Cost of building a {@link Message} from each supported source type.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmarks {
+    double d = 1234.5678;
+    String s = "1234.5678";
+    byte[] bytes = "1234.5678".getBytes();
+
+    @Benchmark
+    public Message fromDouble() {
+        return new Message(d);
+    }
+
+    @Benchmark
+    public Message fromString() {
+        return new Message(s);
+    }
+
+    @Benchmark
+    public Message fromBytes() {
+        return new Message(bytes);
+    }
+}
@@ -0,0 +1,102 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.RequestParser;
+
+/**
+ * {@link RequestParser#parseRequest} on a few representative requests, through
+ * the line-based reader and the byte-level decoder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmarks {
+
+    static final String GET_WITH_QUERY =
+            "GET /publish?topic=A&message=42 HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "User-Agent: bench\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n";
+
+    static final String POST_FORM =
+            "POST /publish HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Content-Type: application/x-www-form-urlencoded\r\n" +
+            "Content-Length: 20\r\n" +
+            "\r\n" +
+            "topic=A&message=12.5";
+
+    static final String MULTIPART_UPLOAD;
+
+    static {
+        StringBuilder conf = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            conf.append("config.PlusAgent\r\nA").append(i).append(",B").append(i).append("\r\nC").append(i).append("\r\n");
+        }
+        String body =
+                "------WebKitFormBoundary7MA4YWxkTrZu0gW\r\n" +
+                "Content-Disposition: form-data; name=\"file\"; filename=\"graph.conf\"\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                conf +
+                "------WebKitFormBoundary7MA4YWxkTrZu0gW--\r\n";
+        MULTIPART_UPLOAD =
+                "POST /upload HTTP/1.1\r\n" +
+                "Host: localhost:8080\r\n" +
+                "Content-Type: multipart/form-data; boundary=----WebKitFormBoundary7MA4YWxkTrZu0gW\r\n" +
+                "Content-Length: " + body.length() + "\r\n" +
+                "\r\n" +
+                body;
+    }
+
+    @Param({"get-query", "post-form", "multipart-upload"})
+    String request;
+
+    byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        switch (request) {
+            case "get-query":
+                bytes = GET_WITH_QUERY.getBytes();
+                break;
+            case "post-form":
+                bytes = POST_FORM.getBytes();
+                break;
+            default:
+                bytes = MULTIPART_UPLOAD.getBytes();
+                break;
+        }
+    }
+
+    @Benchmark
+    public RequestParser.RequestInfo parseRequest() throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes)));
+        return RequestParser.parseRequest(reader);
+    }
+
+    @Benchmark
+    public RequestParser.RequestInfo parseBytes() throws Exception {
+        return RequestParser.parseRequest(bytes);
+    }
+}
@@ -0,0 +1,405 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import config.BinOpAgent;
+import config.ExecutionPlan;
+import config.Graph;
+import config.IncAgent;
+import config.MathExampleConfig;
+import graph.Agent;
+import graph.Message;
+import graph.Topic;
+import graph.TopicLog;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+
+/**
+ * Pub/sub and agent hot paths: topic fan-out, per-hop cost of numeric
+ * pipelines and end-to-end latency through {@link MathExampleConfig}, both
+ * by direct publishing and through a compiled {@link ExecutionPlan}. Also a
+ * {@link BinOpAgent} fed one value at a time versus through
+ * {@link Topic#publishBatch(double[], int, int)}, and its aligned-window mode
+ * with a boxed versus a primitive operator. Publishing to a topic with a
+ * {@link TopicLog} under each fsync policy but {@code ALWAYS}, which measures
+ * the disk rather than the code.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicBenchmarks {
+    static final int HOPS = 10;
+    static final int LOOKUP_TOPICS = 10000;
+    static final int BATCH = 256;
+
+    @State(Scope.Thread)
+    public static class FanOut {
+        @Param({"1", "10", "100"})
+        int subscribers;
+
+        Topic topic;
+        final Message msg = new Message(42.0);
+
+        @Setup
+        public void setUp(Blackhole bh) {
+            TopicManager tm = TopicManagerSingleton.get();
+            tm.clear();
+            topic = tm.getTopic("fanout");
+            for (int i = 0; i < subscribers; i++) {
+                topic.subscribe(new SinkAgent("sink" + i, bh));
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            TopicManagerSingleton.get().clear();
+        }
+    }
+
+    @Benchmark
+    public void publishMessage(FanOut s) {
+        s.topic.publish(s.msg);
+    }
+
+    @Benchmark
+    public void publishDouble(FanOut s) {
+        s.topic.publish(42.0);
+    }
+
+    /** A pipeline of {@value #HOPS} increment agents, built from Messages or over the numeric path. */
+    @State(Scope.Thread)
+    public static class Pipeline {
+        @Param({"message", "double"})
+        String path;
+
+        boolean messages;
+        Topic head;
+        double v;
+
+        @Setup
+        public void setUp() {
+            TopicManager tm = TopicManagerSingleton.get();
+            tm.clear();
+            messages = path.equals("message");
+            for (int i = 0; i < HOPS; i++) {
+                if (messages) {
+                    new MessageIncAgent(tm.getTopic("h" + i), tm.getTopic("h" + (i + 1)));
+                } else {
+                    new IncAgent(tm, new String[]{"h" + i}, new String[]{"h" + (i + 1)});
+                }
+            }
+            head = tm.getTopic("h0");
+        }
+
+        @TearDown
+        public void tearDown() {
+            TopicManagerSingleton.get().clear();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HOPS)
+    public void pipelineHop(Pipeline s) {
+        if (s.messages) {
+            s.head.publish(new Message(s.v++));
+        } else {
+            s.head.publish(s.v++);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Lookup {
+        TopicManager tm;
+        String[] names;
+        int[] ids;
+        int i;
+
+        @Setup
+        public void setUp() {
+            tm = new TopicManager("bench");
+            names = new String[LOOKUP_TOPICS];
+            ids = new int[LOOKUP_TOPICS];
+            for (int t = 0; t < LOOKUP_TOPICS; t++) {
+                names[t] = "topic" + t;
+                ids[t] = tm.getTopic(names[t]).getId();
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            TopicManagerSingleton.removeNamespace("bench");
+        }
+
+        int next() {
+            i = (i + 1) % LOOKUP_TOPICS;
+            return i;
+        }
+    }
+
+    @Benchmark
+    public Topic lookupByName(Lookup s) {
+        return s.tm.findTopic(s.names[s.next()]);
+    }
+
+    @Benchmark
+    public Topic lookupById(Lookup s) {
+        return s.tm.getTopic(s.ids[s.next()]);
+    }
+
+    /** {@code Z = X * Y} with Y fixed, so every X value produces an output. */
+    @State(Scope.Thread)
+    public static class BinOp {
+        Topic x;
+        final double[] values = new double[BATCH];
+
+        @Setup
+        public void setUp(Blackhole bh) {
+            TopicManager tm = TopicManagerSingleton.get();
+            tm.clear();
+            BinOpAgent.of(tm, "mul", "X", "Y", "Z", (a, b) -> a * b);
+            tm.getTopic("Z").subscribe(new SinkAgent("sink", bh));
+            tm.getTopic("Y").publish(2.0);
+            x = tm.getTopic("X");
+            for (int i = 0; i < BATCH; i++) {
+                values[i] = i;
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            TopicManagerSingleton.get().clear();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void binOpPublishSingle(BinOp s) {
+        for (double v : s.values) {
+            s.x.publish(v);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void binOpPublishBatch(BinOp s) {
+        s.x.publishBatch(s.values, 0, BATCH);
+    }
+
+    @State(Scope.Thread)
+    public static class Aligned {
+        @Param({"boxed", "primitive"})
+        String op;
+
+        Topic x;
+        Topic y;
+        final double[] values = new double[BATCH];
+
+        @Setup
+        public void setUp(Blackhole bh) {
+            TopicManager tm = TopicManagerSingleton.get();
+            tm.clear();
+            BinOpAgent agent = op.equals("primitive")
+                    ? BinOpAgent.of(tm, "mul", "X", "Y", "Z", (a, b) -> a * b)
+                    : new BinOpAgent(tm, "mul", "X", "Y", "Z", (a, b) -> a * b);
+            agent.setAlignedWindow(BATCH);
+            tm.getTopic("Z").subscribe(new SinkAgent("sink", bh));
+            x = tm.getTopic("X");
+            y = tm.getTopic("Y");
+            for (int i = 0; i < BATCH; i++) {
+                values[i] = i;
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            TopicManagerSingleton.get().clear();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void binOpAligned(Aligned s) {
+        s.x.publishBatch(s.values, 0, BATCH);
+        s.y.publishBatch(s.values, 0, BATCH);
+    }
+
+    @State(Scope.Thread)
+    public static class Logged {
+        @Param({"NEVER", "BATCH"})
+        TopicLog.FsyncPolicy fsync;
+
+        Path dir;
+        TopicLog log;
+        Topic topic;
+        final Message msg = new Message("42.0");
+
+        @Setup
+        public void setUp(Blackhole bh) throws IOException {
+            TopicManager tm = TopicManagerSingleton.get();
+            tm.clear();
+            dir = Files.createTempDirectory("topic-log");
+            log = new TopicLog(dir);
+            log.setFsyncPolicy(fsync);
+            topic = tm.getTopic("logged");
+            topic.subscribe(new SinkAgent("sink", bh));
+            topic.setLog(log);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            topic.setLog(null);
+            log.close();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+            TopicManagerSingleton.get().clear();
+        }
+    }
+
+    @Benchmark
+    public void publishLogged(Logged s) {
+        s.topic.publish(s.msg);
+    }
+
+    @State(Scope.Thread)
+    public static class MathExample {
+        @Param({"direct", "plan"})
+        String execution;
+
+        Topic a;
+        Topic b;
+        Topic r3;
+        ExecutionPlan plan;
+        int x;
+        final Runnable publishInputs = () -> {
+            a.publish(x);
+            b.publish(x + 1);
+        };
+
+        @Setup
+        public void setUp() {
+            TopicManager tm = TopicManagerSingleton.get();
+            tm.clear();
+            new MathExampleConfig(tm).create();
+            a = tm.getTopic("A");
+            b = tm.getTopic("B");
+            r3 = tm.getTopic("R3");
+            if (execution.equals("plan")) {
+                Graph graph = new Graph();
+                graph.createFromTopics(tm);
+                plan = graph.compile();
+                plan.install();
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            if (plan != null) {
+                plan.uninstall();
+            }
+            TopicManagerSingleton.get().clear();
+        }
+    }
+
+    @Benchmark
+    public double mathExampleEndToEnd(MathExample s) {
+        s.x++;
+        if (s.plan != null) {
+            s.plan.tick(s.publishInputs);
+        } else {
+            s.publishInputs.run();
+        }
+        return s.r3.getDouble(0);
+    }
+
+    /** Subscriber that hands every delivered value to a Blackhole. */
+    static class SinkAgent implements Agent {
+        private final String name;
+        private final Blackhole bh;
+
+        SinkAgent(String name, Blackhole bh) {
+            this.name = name;
+            this.bh = bh;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void callback(String topic, Message msg) {
+            bh.consume(msg);
+        }
+
+        @Override
+        public void callback(String topic, double value) {
+            bh.consume(value);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Increment agent that builds a new Message per hop, as all agents did before the numeric path. */
+    static class MessageIncAgent implements Agent {
+        private final Topic input;
+        private final Topic output;
+
+        MessageIncAgent(Topic input, Topic output) {
+            this.input = input;
+            this.output = output;
+            input.subscribe(this);
+            output.addPublisher(this);
+        }
+
+        @Override
+        public String getName() {
+            return "MessageIncAgent";
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void callback(String topic, Message msg) {
+            output.publish(new Message(msg.asDouble + 1));
+        }
+
+        @Override
+        public void close() {
+            input.unsubscribe(this);
+            output.removePublisher(this);
+        }
+    }
+}
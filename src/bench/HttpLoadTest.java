@@ -0,0 +1,178 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+import server.HTTPServer;
+import server.MyHTTPServer;
+import server.RequestParser.RequestInfo;
+import server.Servlet;
+
+/**
+ * Opens many concurrent connections against {@link MyHTTPServer} in its
+ * fixed-pool and virtual-thread modes and reports p50/p99/max latency.
+ *
+ * <pre>
+ * java -cp bin bench.HttpLoadTest [connections] [poolThreads] [servletMillis]
+ * </pre>
+ *
+ * Defaults are 10000 connections, a 200-thread fixed pool and a servlet that
+ * takes 5 ms. The client is a single selector thread, so it can hold every
+ * connection open at once; each sample is the time from connect to the last
+ * response byte. Virtual-thread mode is skipped on runtimes older than Java 21.
+ */
+public class HttpLoadTest {
+    private static final int PORT = 8091;
+    private static final long TIMEOUT_NANOS = 120_000_000_000L;
+    private static final int CONNECT_WAVE = 100;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int poolThreads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int servletMillis = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        report("fixed-pool(" + poolThreads + ")", run(new MyHTTPServer(PORT, poolThreads), connections, servletMillis));
+        if (MyHTTPServer.virtualThreadsSupported()) {
+            report("virtual-threads(limit " + connections + ")",
+                    run(MyHTTPServer.withVirtualThreads(PORT, connections), connections, servletMillis));
+        } else {
+            System.out.println("virtual-threads: skipped, needs a Java 21+ runtime");
+        }
+    }
+
+    private static long[] run(HTTPServer server, int connections, int servletMillis) throws Exception {
+        server.addServlet("GET", "/load", new SlowServlet(servletMillis));
+        server.start();
+        Thread.sleep(500);
+        try {
+            // warm up the server's code paths before measuring
+            drive(Math.min(connections, 500));
+            return drive(connections);
+        } finally {
+            server.close();
+            Thread.sleep(1500); // let the accept loop notice and release the port
+        }
+    }
+
+    /** @return latency in nanos per completed connection, sorted; failures are counted as -1 and dropped. */
+    private static long[] drive(int connections) throws IOException {
+        byte[] request = ("GET /load HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes();
+        InetSocketAddress address = new InetSocketAddress("localhost", PORT);
+        long[] latencies = new long[connections];
+        int done = 0;
+        int failed = 0;
+        try (Selector selector = Selector.open()) {
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+            int opened = 0;
+            while (done + failed < connections && System.nanoTime() < deadline) {
+                // Open connections in small waves so early ones are serviced while later ones connect
+                for (int i = 0; i < CONNECT_WAVE && opened < connections; i++, opened++) {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    Client client = new Client(ByteBuffer.wrap(request));
+                    channel.connect(address);
+                    channel.register(selector, SelectionKey.OP_CONNECT, client);
+                }
+                if (opened < connections) {
+                    selector.selectNow();
+                } else {
+                    selector.select(1000);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Client client = (Client) key.attachment();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (key.isConnectable()) {
+                            channel.finishConnect();
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        } else if (key.isWritable()) {
+                            channel.write(client.request);
+                            if (!client.request.hasRemaining()) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        } else if (key.isReadable()) {
+                            readBuffer.clear();
+                            if (channel.read(readBuffer) < 0) {
+                                latencies[done++] = System.nanoTime() - client.start;
+                                key.cancel();
+                                channel.close();
+                            }
+                        }
+                    } catch (IOException e) {
+                        failed++;
+                        key.cancel();
+                        channel.close();
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        }
+        if (failed > 0 || done < connections) {
+            System.out.println("  " + failed + " failed, " + (connections - done - failed) + " timed out");
+        }
+        long[] completed = Arrays.copyOf(latencies, done);
+        Arrays.sort(completed);
+        return completed;
+    }
+
+    private static void report(String mode, long[] sorted) {
+        if (sorted.length == 0) {
+            System.out.println(mode + ": no successful requests");
+            return;
+        }
+        System.out.println(String.format(Locale.ROOT, "%-32s n=%-6d p50=%8.2f ms  p99=%8.2f ms  max=%8.2f ms",
+                mode, sorted.length, percentile(sorted, 0.50), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static final class Client {
+        final ByteBuffer request;
+        final long start = System.nanoTime();
+
+        Client(ByteBuffer request) {
+            this.request = request;
+        }
+    }
+
+    /** Servlet that simulates a blocking backend call. */
+    private static final class SlowServlet implements Servlet {
+        private final int millis;
+
+        SlowServlet(int millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            toClient.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes());
+            toClient.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
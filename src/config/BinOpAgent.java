@@ -1,25 +1,82 @@
 package config;
 
+import java.util.Arrays;
 import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
 
 import graph.Agent;
+import graph.IndexedAgent;
 import graph.Message;
 import graph.Topic;
 import graph.TopicManagerSingleton;
 import graph.TopicManagerSingleton.TopicManager;
 
-
+/**
+ * Applies a binary operator to two input topics and publishes the result.
+ *
+ * By default each update of either input is combined with the other input's
+ * latest value. With {@link #setAlignedWindow(int)} the agent instead pairs the
+ * n-th value of the first input with the n-th value of the second and emits
+ * results in batches of at least that many pairs.
+ */
 public class BinOpAgent implements Agent {
 
+    /** Most unmatched values buffered per input in aligned mode; older ones are dropped. */
+    public static final int MAX_PENDING = 1 << 16;
+
     private Agent agent;
     private String agentName;
     private String firstTopicName;
     private String secondTopicName;
     private String outputTopicName;
-    private BinaryOperator<Double> func;
+    private DoubleBinaryOperator func;
+    private Topic outputTopic;
+    private final TopicManager topicManager;
+
+    // Aligned mode: values of each input not yet paired with the other, oldest first
+    private final Object alignLock = new Object();
+    private volatile int window = 0;
+    private double[][] pending = {new double[0], new double[0]};
+    private int[] pendingCount = new int[2];
 
     public BinOpAgent(String agentName, String firstTopicName, String secondTopicName, String outputTopicName, BinaryOperator<Double> func) {
-        TopicManager tm = TopicManagerSingleton.get();
+        this(TopicManagerSingleton.get(), agentName, firstTopicName, secondTopicName, outputTopicName, unboxed(func));
+    }
+
+    /** Creates the agent on the topics of one namespace instead of the default one. */
+    public BinOpAgent(TopicManager tm, String agentName, String firstTopicName, String secondTopicName, String outputTopicName, BinaryOperator<Double> func) {
+        this(tm, agentName, firstTopicName, secondTopicName, outputTopicName, unboxed(func));
+    }
+
+    /**
+     * Creates a BinOpAgent over a primitive operator, so evaluating it boxes
+     * nothing. A separate factory because an implicitly typed lambda would be
+     * ambiguous between two constructors.
+     */
+    public static BinOpAgent of(String agentName, String firstTopicName, String secondTopicName, String outputTopicName, DoubleBinaryOperator func) {
+        return of(TopicManagerSingleton.get(), agentName, firstTopicName, secondTopicName, outputTopicName, func);
+    }
+
+    /** Like {@link #of(String, String, String, String, DoubleBinaryOperator)}, on the topics of one namespace. */
+    public static BinOpAgent of(TopicManager tm, String agentName, String firstTopicName, String secondTopicName, String outputTopicName, DoubleBinaryOperator func) {
+        if (func == null) {
+            throw new IllegalArgumentException("Operator cannot be null");
+        }
+        return new BinOpAgent(tm, agentName, firstTopicName, secondTopicName, outputTopicName, func);
+    }
+
+    private static DoubleBinaryOperator unboxed(BinaryOperator<Double> func) {
+        if (func == null) {
+            throw new IllegalArgumentException("Operator cannot be null");
+        }
+        return (x, y) -> func.apply(x, y);
+    }
+
+    private BinOpAgent(TopicManager tm, String agentName, String firstTopicName, String secondTopicName, String outputTopicName, DoubleBinaryOperator func) {
+        if (tm == null) {
+            throw new IllegalArgumentException("Topic manager cannot be null");
+        }
+        this.topicManager = tm;
 
         // Get topics from TopicManager
         Topic firstTopic = tm.getTopic(firstTopicName);
@@ -36,9 +93,10 @@ public class BinOpAgent implements Agent {
         this.secondTopicName = secondTopicName;
         this.outputTopicName = outputTopicName;
         this.func = func;
+        this.outputTopic = outputTopic;
 
         // Define the agent
-        this.agent = new Agent() {
+        this.agent = new IndexedAgent() {
             @Override
             public String getName() {
                 return agentName;
@@ -47,26 +105,79 @@ public class BinOpAgent implements Agent {
             @Override
             public void reset() {
                 System.out.println("Resetting topics to default values.");
-                firstTopic.publish(new Message(0.0));
-                secondTopic.publish(new Message(0.0));
+                firstTopic.publish(0.0);
+                secondTopic.publish(0.0);
             }
 
             @Override
             public void callback(String topic, Message msg) {
-                System.out.println("Callback received: " + topic + " -> " + msg.asDouble);
+                callback(topic, msg.asDouble);
+            }
+
+            @Override
+            public void callback(String topic, double value) {
                 if (topic.equals(firstTopicName)) {
-                    // Message came from the first topic
-                    double x = msg.asDouble;
-                    double y = (secondTopic.getMsg() != null) ? secondTopic.getMsg().asDouble : 0;
-                    double result = func.apply(x, y);
-                    outputTopic.publish(new Message(result));
+                    callback(0, value);
                 } else if (topic.equals(secondTopicName)) {
+                    callback(1, value);
+                }
+            }
+
+            @Override
+            public void callback(int slot, Message msg) {
+                callback(slot, msg.asDouble);
+            }
+
+            @Override
+            public void callback(int slot, double value) {
+                if (window > 0) {
+                    align(slot, value);
+                    return;
+                }
+                if (slot == 0) {
+                    // Message came from the first topic
+                    double y = secondTopic.getDouble(0);
+                    outputTopic.publish(func.applyAsDouble(value, y));
+                } else if (slot == 1) {
                     // Message came from the second topic
-                    double y = msg.asDouble;
-                    double x = (firstTopic.getMsg() != null) ? firstTopic.getMsg().asDouble : 0;
-                    double result = func.apply(x, y);
-                    outputTopic.publish(new Message(result));
+                    double x = firstTopic.getDouble(0);
+                    outputTopic.publish(func.applyAsDouble(x, value));
+                }
+            }
+
+            @Override
+            public void callbackBatch(int slot, double[] values, int off, int len) {
+                if (window > 0) {
+                    align(slot, values, off, len);
+                    return;
                 }
+                // One pass over the batch, with the other operand fixed at its latest value
+                double[] out = new double[len];
+                if (slot == 0) {
+                    double y = secondTopic.getDouble(0);
+                    for (int i = 0; i < len; i++) {
+                        out[i] = func.applyAsDouble(values[off + i], y);
+                    }
+                } else if (slot == 1) {
+                    double x = firstTopic.getDouble(0);
+                    for (int i = 0; i < len; i++) {
+                        out[i] = func.applyAsDouble(x, values[off + i]);
+                    }
+                } else {
+                    return;
+                }
+                outputTopic.publishBatch(out, 0, len);
+            }
+
+            @Override
+            public void inputsChanged(Topic.Subscription[] changed, int count) {
+                if (window > 0) {
+                    // Aligned mode pairs values one by one
+                    IndexedAgent.super.inputsChanged(changed, count);
+                    return;
+                }
+                // Both inputs hold their latest values, so one result covers the tick
+                outputTopic.publish(func.applyAsDouble(firstTopic.getDouble(0), secondTopic.getDouble(0)));
             }
 
             @Override
@@ -77,11 +188,116 @@ public class BinOpAgent implements Agent {
         };
 
         // Subscribe agent to topics
-        firstTopic.subscribe(this.agent);
-        secondTopic.subscribe(this.agent);
+        firstTopic.subscribe(this.agent, 0);
+        secondTopic.subscribe(this.agent, 1);
         outputTopic.addPublisher(this.agent);
     }
 
+    /**
+     * Switches to aligned mode: results are computed pairwise over equal-length
+     * windows of both inputs and published with
+     * {@link Topic#publishBatch(double[], int, int)} once at least
+     * {@code window} pairs are available. 0 restores latest-value mode and
+     * drops anything buffered.
+     */
+    public void setAlignedWindow(int window) {
+        if (window < 0) {
+            throw new IllegalArgumentException("Window must not be negative");
+        }
+        synchronized (alignLock) {
+            this.window = window;
+            pendingCount[0] = 0;
+            pendingCount[1] = 0;
+        }
+    }
+
+    public int getAlignedWindow() {
+        return window;
+    }
+
+    private void align(int slot, double value) {
+        if (slot != 0 && slot != 1) {
+            return;
+        }
+        double[] out;
+        synchronized (alignLock) {
+            append(slot, value);
+            out = takePairs();
+        }
+        publishPairs(out);
+    }
+
+    private void align(int slot, double[] values, int off, int len) {
+        if (slot != 0 && slot != 1) {
+            return;
+        }
+        double[] out;
+        synchronized (alignLock) {
+            append(slot, values, off, len);
+            out = takePairs();
+        }
+        publishPairs(out);
+    }
+
+    /** @return the results of every buffered pair, or null while fewer than the window are buffered. */
+    private double[] takePairs() {
+        int pairs = Math.min(pendingCount[0], pendingCount[1]);
+        if (pairs == 0 || pairs < window) {
+            return null;
+        }
+        double[] out = new double[pairs];
+        double[] a = pending[0];
+        double[] b = pending[1];
+        for (int i = 0; i < pairs; i++) {
+            out[i] = func.applyAsDouble(a[i], b[i]);
+        }
+        for (int side = 0; side < 2; side++) {
+            pendingCount[side] -= pairs;
+            System.arraycopy(pending[side], pairs, pending[side], 0, pendingCount[side]);
+        }
+        return out;
+    }
+
+    private void publishPairs(double[] out) {
+        // Published outside the lock, downstream agents may feed back into this one
+        if (out != null) {
+            outputTopic.publishBatch(out, 0, out.length);
+        }
+    }
+
+    private void append(int side, double value) {
+        int count = pendingCount[side];
+        if (count == MAX_PENDING) {
+            // The other input has fallen too far behind; forget the oldest unmatched value
+            System.arraycopy(pending[side], 1, pending[side], 0, count - 1);
+            count--;
+        }
+        if (count == pending[side].length) {
+            pending[side] = Arrays.copyOf(pending[side], Math.min(MAX_PENDING, Math.max(16, count * 2)));
+        }
+        pending[side][count] = value;
+        pendingCount[side] = count + 1;
+    }
+
+    private void append(int side, double[] values, int off, int len) {
+        if (len > MAX_PENDING) {
+            off += len - MAX_PENDING;
+            len = MAX_PENDING;
+        }
+        int count = pendingCount[side];
+        int overflow = count + len - MAX_PENDING;
+        if (overflow > 0) {
+            // The other input has fallen too far behind; forget the oldest unmatched values
+            System.arraycopy(pending[side], overflow, pending[side], 0, count - overflow);
+            count -= overflow;
+        }
+        if (count + len > pending[side].length) {
+            pending[side] = Arrays.copyOf(pending[side], Math.min(MAX_PENDING, Math.max(16, (count + len) * 2)));
+        }
+        System.arraycopy(values, off, pending[side], count, len);
+        pendingCount[side] = count + len;
+    }
+
     // Reset topics to default values
     public void reset(TopicManager tm) {
         System.out.println("Resetting topics.");
@@ -92,7 +308,7 @@ public class BinOpAgent implements Agent {
     // Close the agent and unsubscribe from topics
     public void closeAgent() {
         System.out.println("Unsubscribing agent from topics.");
-        TopicManager tm = TopicManagerSingleton.get();
+        TopicManager tm = topicManager;
         tm.getTopic(firstTopicName).unsubscribe(agent);
         tm.getTopic(secondTopicName).unsubscribe(agent);
         tm.getTopic(outputTopicName).removePublisher(agent);
@@ -0,0 +1,169 @@
+package config;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of a {@link Graph} in compressed sparse row form.
+ * Nodes are numbered {@code 0..nodeCount()-1}; the edges of node {@code v}
+ * are {@code targets[offsets[v] .. offsets[v + 1])}. Two int arrays and one
+ * name per node replace a Node object, an edge ArrayList and a map entry per
+ * node, and traversals walk contiguous memory.
+ *
+ * Build one with {@link Graph#toCsr()}.
+ */
+public final class CsrGraph {
+    private final String[] names;
+    private final int[] offsets;
+    private final int[] targets;
+    // Built on first lookup by name
+    private volatile Map<String, Integer> ids;
+
+    CsrGraph(String[] names, int[] offsets, int[] targets, boolean internNames) {
+        if (offsets.length != names.length + 1 || offsets[names.length] > targets.length) {
+            throw new IllegalArgumentException("Offsets do not match the node and edge arrays");
+        }
+        this.names = names;
+        this.offsets = offsets;
+        this.targets = targets.length == offsets[names.length] ? targets : Arrays.copyOf(targets, offsets[names.length]);
+        for (int i = 0; internNames && i < names.length; i++) {
+            // Long-lived snapshots of the same topology then share one copy of each name
+            names[i] = names[i].intern();
+        }
+    }
+
+    public int nodeCount() {
+        return names.length;
+    }
+
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    public String name(int node) {
+        return names[node];
+    }
+
+    /** @return the id of the node with this name, or -1. */
+    public int idOf(String name) {
+        Map<String, Integer> m = ids;
+        if (m == null) {
+            m = new HashMap<>(names.length * 2);
+            for (int i = 0; i < names.length; i++) {
+                m.putIfAbsent(names[i], i);
+            }
+            ids = m;
+        }
+        Integer id = m.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /** @return the index of the first edge of {@code node} in {@link #target(int)} order. */
+    public int firstEdge(int node) {
+        return offsets[node];
+    }
+
+    /** @return one past the index of the last edge of {@code node}. */
+    public int endEdge(int node) {
+        return offsets[node + 1];
+    }
+
+    public int target(int edge) {
+        return targets[edge];
+    }
+
+    public int outDegree(int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    /** @return a copy of the nodes {@code node} has edges to. */
+    public int[] successors(int node) {
+        return Arrays.copyOfRange(targets, offsets[node], offsets[node + 1]);
+    }
+
+    /** @return the strongly connected component of each node, numbered in reverse topological order. */
+    public int[] stronglyConnectedComponents() {
+        return new TarjanScc(offsets, targets).componentOf;
+    }
+
+    public boolean hasCycles() {
+        return new TarjanScc(offsets, targets).hasCycle(offsets, targets);
+    }
+
+    /**
+     * Orders the nodes so every edge points forward (Kahn's algorithm).
+     *
+     * @throws IllegalStateException If the graph has a cycle.
+     */
+    public int[] topologicalOrder() {
+        int n = names.length;
+        int[] inDegree = new int[n];
+        for (int target : targets) {
+            inDegree[target]++;
+        }
+        int[] order = new int[n];
+        int head = 0;
+        int tail = 0;
+        for (int v = 0; v < n; v++) {
+            if (inDegree[v] == 0) {
+                order[tail++] = v;
+            }
+        }
+        // order doubles as the queue: [head, tail) is ready, [0, head) is done
+        while (head < tail) {
+            int v = order[head++];
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                if (--inDegree[targets[e]] == 0) {
+                    order[tail++] = targets[e];
+                }
+            }
+        }
+        if (tail < n) {
+            throw new IllegalStateException("Graph has cycles and cannot be ordered");
+        }
+        return order;
+    }
+
+    /**
+     * @return for each node, the length of the longest path reaching it from
+     *         a node without incoming edges. Nodes with equal depth never
+     *         depend on each other.
+     * @throws IllegalStateException If the graph has a cycle.
+     */
+    public int[] depths() {
+        int[] depth = new int[names.length];
+        for (int v : topologicalOrder()) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int w = targets[e];
+                if (depth[v] + 1 > depth[w]) {
+                    depth[w] = depth[v] + 1;
+                }
+            }
+        }
+        return depth;
+    }
+
+    /** @return true if {@code to} can be reached from {@code from}. */
+    public boolean reachable(int from, int to) {
+        boolean[] seen = new boolean[names.length];
+        // Every node is pushed at most once
+        int[] stack = new int[names.length];
+        int sp = 0;
+        stack[sp++] = from;
+        seen[from] = true;
+        while (sp > 0) {
+            int v = stack[--sp];
+            if (v == to) {
+                return true;
+            }
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                if (!seen[targets[e]]) {
+                    seen[targets[e]] = true;
+                    stack[sp++] = targets[e];
+                }
+            }
+        }
+        return false;
+    }
+}
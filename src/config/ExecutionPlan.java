@@ -0,0 +1,460 @@
+package config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import graph.Agent;
+import graph.Topic;
+import graph.TopicDispatcher;
+
+/**
+ * A topologically ordered schedule for the agents of a {@link Graph}, built by
+ * {@link Graph#compile()}.
+ *
+ * Once installed, the plan becomes the dispatcher of every topic in the graph
+ * and propagates updates in waves instead of by recursive publishing. Within a
+ * tick an agent runs only after everything upstream of it has settled, and at
+ * most once: all of its inputs that changed are handed to it together through
+ * {@link Agent#inputsChanged(Topic.Subscription[], int)}, each carrying its
+ * latest value. A topic published several times in a tick reaches its
+ * subscribers once, with the final value. In a diamond like
+ * {@link MathExampleConfig}, {@code plus} runs once for {@code A} and
+ * {@code B}, {@code mul} no longer emits the intermediate result computed from
+ * a stale {@code R2}, and everything below it runs once rather than once per
+ * incoming edge.
+ *
+ * Agents are grouped into layers that do not depend on each other, and a tick
+ * runs one layer at a time. With a pool set through {@link #setPool(ForkJoinPool)},
+ * the dirty agents of a layer run in parallel and the next layer starts only
+ * when all of them are done; otherwise everything runs on the publishing thread.
+ *
+ * Ticks are serialized: a publish from another thread waits for the running
+ * tick to finish. Subscribers added after compilation are served after the
+ * planned agents, on the tick's own thread, one callback per input.
+ */
+public class ExecutionPlan implements TopicDispatcher {
+
+    /** Layers with fewer dirty agents than this run on the tick's thread even with a pool. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 4;
+
+    /** The plan whose tick the current thread is working for, if any. */
+    private static final ThreadLocal<ExecutionPlan> RUNNING = new ThreadLocal<>();
+
+    // Agents sorted by layer, then topological order
+    private final Agent[] agents;
+    private final int[] layerOf;
+    private final int[] layerEnd;
+    private final List<Topic> topics;
+    // Only consulted for subscriptions that changed after compilation
+    private final IdentityHashMap<Agent, Integer> ranks = new IdentityHashMap<>();
+
+    // Every planned subscription is an input edge; an agent's edges are
+    // inputStart[rank] .. inputStart[rank + 1]
+    private final Topic.Subscription[] inputs;
+    private final int[] inputRank;
+    private final int[] inputStart;
+    private final IdentityHashMap<Topic, Fanout> fanouts = new IdentityHashMap<>();
+    // Per agent, where its changed inputs are gathered for one call
+    private final Topic.Subscription[][] changedScratch;
+    // The ranks of the layer being run; only touched by the thread running the tick
+    private final int[] ready;
+
+    private final ReentrantLock tickLock = new ReentrantLock();
+    // The per-tick state below belongs to the thread holding tickLock, except
+    // while a layer runs on the pool: then it is guarded by marks
+    private final Object marks = new Object();
+    // Set by the tick's thread around a pooled layer; the pool's hand-off publishes it to the workers
+    private boolean concurrent;
+    private final BitSet changedInputs;
+    private final BitSet dirty;
+    private final Map<Agent, List<Topic.Subscription>> unplanned = new LinkedHashMap<>();
+
+    private final AtomicLong callbacks = new AtomicLong();
+    private volatile ForkJoinPool pool;
+    private volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    ExecutionPlan(List<Agent> agents, List<Integer> layers, List<Topic> topics) {
+        Integer[] byLayer = new Integer[agents.size()];
+        for (int i = 0; i < byLayer.length; i++) {
+            byLayer[i] = i;
+        }
+        // Stable, so agents keep their topological order within a layer
+        Arrays.sort(byLayer, (x, y) -> Integer.compare(layers.get(x), layers.get(y)));
+
+        this.agents = new Agent[byLayer.length];
+        this.layerOf = new int[byLayer.length];
+        int layerCount = 0;
+        for (int i = 0; i < byLayer.length; i++) {
+            this.agents[i] = agents.get(byLayer[i]);
+            this.layerOf[i] = i > 0 && layers.get(byLayer[i]).equals(layers.get(byLayer[i - 1]))
+                    ? layerOf[i - 1] : layerCount++;
+            ranks.put(this.agents[i], i);
+        }
+        this.layerEnd = new int[layerCount];
+        for (int i = 0; i < byLayer.length; i++) {
+            layerEnd[layerOf[i]] = i + 1;
+        }
+
+        this.topics = Collections.unmodifiableList(new ArrayList<>(topics));
+
+        // Bucket each topic's subscriptions by the rank of the subscriber
+        List<List<Topic.Subscription>> byRank = new ArrayList<>(this.agents.length);
+        for (int i = 0; i < this.agents.length; i++) {
+            byRank.add(new ArrayList<>(2));
+        }
+        Map<Topic, Integer> stamps = new IdentityHashMap<>();
+        Map<Topic, List<Topic.Subscription>> snapshots = new IdentityHashMap<>();
+        int edgeCount = 0;
+        for (Topic topic : this.topics) {
+            // Stamp first: a change racing with the copy leaves the topic on the slow path
+            stamps.put(topic, topic.getSubscriptionStamp());
+            List<Topic.Subscription> subscriptions = topic.getSubscriptions();
+            snapshots.put(topic, subscriptions);
+            for (Topic.Subscription subscription : subscriptions) {
+                Integer rank = ranks.get(subscription.getAgent());
+                if (rank != null) {
+                    byRank.get(rank).add(subscription);
+                    edgeCount++;
+                }
+            }
+        }
+        this.inputs = new Topic.Subscription[edgeCount];
+        this.inputRank = new int[edgeCount];
+        this.inputStart = new int[this.agents.length + 1];
+        this.changedScratch = new Topic.Subscription[this.agents.length][];
+        IdentityHashMap<Topic.Subscription, Integer> edgeOf = new IdentityHashMap<>();
+        int edge = 0;
+        for (int rank = 0; rank < this.agents.length; rank++) {
+            inputStart[rank] = edge;
+            for (Topic.Subscription subscription : byRank.get(rank)) {
+                inputs[edge] = subscription;
+                inputRank[edge] = rank;
+                edgeOf.put(subscription, edge++);
+            }
+            changedScratch[rank] = new Topic.Subscription[edge - inputStart[rank]];
+        }
+        inputStart[this.agents.length] = edge;
+
+        for (Topic topic : this.topics) {
+            List<Topic.Subscription> subscriptions = snapshots.get(topic);
+            int[] edges = new int[subscriptions.size()];
+            List<Topic.Subscription> others = new ArrayList<>(0);
+            int planned = 0;
+            for (Topic.Subscription subscription : subscriptions) {
+                Integer e = edgeOf.get(subscription);
+                if (e != null) {
+                    edges[planned++] = e;
+                } else {
+                    others.add(subscription);
+                }
+            }
+            fanouts.put(topic, new Fanout(stamps.get(topic), Arrays.copyOf(edges, planned),
+                    others.toArray(new Topic.Subscription[0])));
+        }
+
+        this.ready = new int[this.agents.length];
+        this.changedInputs = new BitSet(edgeCount);
+        this.dirty = new BitSet(this.agents.length);
+    }
+
+    /** A topic's subscriptions as of compilation, resolved to input edges. */
+    private static final class Fanout {
+        final int stamp;
+        final int[] edges;
+        final Topic.Subscription[] unplanned;
+
+        Fanout(int stamp, int[] edges, Topic.Subscription[] unplanned) {
+            this.stamp = stamp;
+            this.edges = edges;
+            this.unplanned = unplanned;
+        }
+    }
+
+    /** Makes this plan the dispatcher of all its topics. */
+    public void install() {
+        for (Topic topic : topics) {
+            topic.setDispatcher(this);
+        }
+    }
+
+    /** Returns the topics to direct delivery. */
+    public void uninstall() {
+        for (Topic topic : topics) {
+            if (topic.getDispatcher() == this) {
+                topic.setDispatcher(null);
+            }
+        }
+    }
+
+    /**
+     * Runs the agents of each layer in parallel on a pool; null runs
+     * everything on the publishing thread.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets how many agents of one layer must be ready before the layer is
+     * split across the pool; smaller layers are not worth the hand-off.
+     */
+    public void setParallelThreshold(int agents) {
+        if (agents < 1) {
+            throw new IllegalArgumentException("Parallel threshold must be positive");
+        }
+        this.parallelThreshold = agents;
+    }
+
+    /**
+     * Runs several publishes as one logical tick, so an agent that depends on
+     * more than one of them runs once, after all of them.
+     */
+    public void tick(Runnable updates) {
+        if (RUNNING.get() == this) {
+            updates.run();
+            return;
+        }
+        runTick(updates, null);
+    }
+
+    @Override
+    public void published(Topic topic) {
+        if (RUNNING.get() != this) {
+            // A publish outside a tick is a tick of its own
+            runTick(null, topic);
+        } else if (concurrent) {
+            synchronized (marks) {
+                mark(topic);
+            }
+        } else {
+            mark(topic);
+        }
+    }
+
+    private void runTick(Runnable updates, Topic published) {
+        tickLock.lock();
+        RUNNING.set(this);
+        try {
+            if (published != null) {
+                mark(published);
+            }
+            if (updates != null) {
+                updates.run();
+            }
+            drain();
+        } finally {
+            // Not remove(): the next tick's set() would allocate a new map entry
+            RUNNING.set(null);
+            clearPending();
+            tickLock.unlock();
+        }
+    }
+
+    private void mark(Topic topic) {
+        Fanout fanout = fanouts.get(topic);
+        if (fanout != null && fanout.stamp == topic.getSubscriptionStamp()) {
+            for (int edge : fanout.edges) {
+                changedInputs.set(edge);
+                dirty.set(inputRank[edge]);
+            }
+            for (Topic.Subscription subscription : fanout.unplanned) {
+                markUnplanned(subscription);
+            }
+        } else {
+            for (Topic.Subscription subscription : topic.getSubscriptions()) {
+                int edge = edgeOf(subscription);
+                if (edge >= 0) {
+                    changedInputs.set(edge);
+                    dirty.set(inputRank[edge]);
+                } else {
+                    markUnplanned(subscription);
+                }
+            }
+        }
+    }
+
+    /** @return the input edge of a subscription made before compilation, or -1. */
+    private int edgeOf(Topic.Subscription subscription) {
+        Integer rank = ranks.get(subscription.getAgent());
+        if (rank != null) {
+            for (int edge = inputStart[rank]; edge < inputStart[rank + 1]; edge++) {
+                if (inputs[edge] == subscription) {
+                    return edge;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void markUnplanned(Topic.Subscription subscription) {
+        List<Topic.Subscription> pending = unplanned.computeIfAbsent(subscription.getAgent(), a -> new ArrayList<>(2));
+        if (!pending.contains(subscription)) {
+            pending.add(subscription);
+        }
+    }
+
+    // Runs on the tick's thread between layers, when nothing else touches the marks
+    private void drain() {
+        while (true) {
+            int rank = dirty.nextSetBit(0);
+            if (rank >= 0) {
+                // Everything dirty in the lowest dirty layer is independent and can run together
+                int end = layerEnd[layerOf[rank]];
+                int readyCount = 0;
+                for (int r = rank; r >= 0 && r < end; r = dirty.nextSetBit(r + 1)) {
+                    ready[readyCount++] = r;
+                }
+                dirty.clear(rank, end);
+                runLayer(readyCount);
+            } else if (!unplanned.isEmpty()) {
+                Iterator<Map.Entry<Agent, List<Topic.Subscription>>> it = unplanned.entrySet().iterator();
+                Map.Entry<Agent, List<Topic.Subscription>> entry = it.next();
+                it.remove();
+                // Copy first: the agent's own publishes may add to the map
+                for (Topic.Subscription subscription : entry.getValue().toArray(new Topic.Subscription[0])) {
+                    callbacks.incrementAndGet();
+                    subscription.deliverLast();
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void runLayer(int count) {
+        ForkJoinPool p = pool;
+        if (p == null || count < parallelThreshold) {
+            for (int i = 0; i < count; i++) {
+                run(ready[i]);
+            }
+            return;
+        }
+
+        int chunks = Math.min(count, p.getParallelism() * 4);
+        List<Callable<Void>> tasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            int from = c * count / chunks;
+            int to = (c + 1) * count / chunks;
+            tasks.add(() -> {
+                ExecutionPlan previous = RUNNING.get();
+                RUNNING.set(this);
+                try {
+                    for (int i = from; i < to; i++) {
+                        run(ready[i]);
+                    }
+                } finally {
+                    RUNNING.set(previous);
+                }
+                return null;
+            });
+        }
+        // invokeAll is the barrier between this layer and the next
+        RuntimeException failure = null;
+        List<Future<Void>> results;
+        concurrent = true;
+        try {
+            results = p.invokeAll(tasks);
+        } finally {
+            concurrent = false;
+        }
+        for (Future<Void> done : results) {
+            try {
+                done.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a layer", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Calls a planned agent once with every input that changed since it last ran. */
+    private void run(int rank) {
+        int count;
+        // Take the marks first: the agent's own publishes may mark it dirty again
+        if (concurrent) {
+            synchronized (marks) {
+                count = takeChanged(rank);
+            }
+        } else {
+            count = takeChanged(rank);
+        }
+        Topic.Subscription[] changed = changedScratch[rank];
+        if (count == 0) {
+            return;
+        }
+        callbacks.incrementAndGet();
+        if (count == 1) {
+            changed[0].deliverLast();
+        } else {
+            changed[0].getAgent().inputsChanged(changed, count);
+        }
+    }
+
+    private int takeChanged(int rank) {
+        Topic.Subscription[] changed = changedScratch[rank];
+        int count = 0;
+        int end = inputStart[rank + 1];
+        for (int edge = changedInputs.nextSetBit(inputStart[rank]); edge >= 0 && edge < end;
+                edge = changedInputs.nextSetBit(edge + 1)) {
+            changed[count++] = inputs[edge];
+        }
+        changedInputs.clear(inputStart[rank], end);
+        return count;
+    }
+
+    private void clearPending() {
+        changedInputs.clear();
+        dirty.clear();
+        unplanned.clear();
+    }
+
+    /** @return the agents in the order the plan runs them. */
+    public List<Agent> getAgents() {
+        return Collections.unmodifiableList(Arrays.asList(agents));
+    }
+
+    /** @return the agents grouped into layers; agents in one layer are independent. */
+    public List<List<Agent>> getLayers() {
+        List<List<Agent>> layers = new ArrayList<>(layerEnd.length);
+        int start = 0;
+        for (int end : layerEnd) {
+            layers.add(Collections.unmodifiableList(Arrays.asList(agents).subList(start, end)));
+            start = end;
+        }
+        return layers;
+    }
+
+    public List<Topic> getTopics() {
+        return topics;
+    }
+
+    /**
+     * @return how many times the plan has called an agent since it was
+     *         compiled; a planned agent called with several changed inputs
+     *         counts once.
+     */
+    public long getCallbackCount() {
+        return callbacks.get();
+    }
+}
@@ -2,19 +2,83 @@ package config;
 
 import config.Config;
 import graph.Agent;
+import graph.Message;
+import graph.StatefulAgent;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileReader;
-import java.lang.reflect.Constructor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 public class GenericConfig implements Config {
+    // "GSNP", then the format version
+    private static final int SNAPSHOT_MAGIC = 0x47534E50;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    // Stanzas read before their agents are created
+    private static final int LOAD_CHUNK = 4096;
+
+    /** Agent factories by class name, shared by all configs. */
+    private static final ConcurrentHashMap<String, AgentFactory> FACTORIES = new ConcurrentHashMap<>();
+
     private String confFile;
+    private final TopicManager topicManager;
     private final List<ParallelAgent> agents;
+    // The class, subscriptions line and publications line each agent was created from, in creation order
+    private final List<String[]> specs;
+    private ParallelAgent.BackpressurePolicy policy = ParallelAgent.BackpressurePolicy.BLOCK;
+    private boolean parallelLoad = false;
+
+    /** Creates an agent from the topic names of its stanza. */
+    @FunctionalInterface
+    private interface AgentFactory {
+        Agent create(TopicManager tm, String[] subs, String[] pubs);
+    }
+
+    /** Agent classes that only have the {@code (String[] subs, String[] pubs)} constructor. */
+    @FunctionalInterface
+    private interface LegacyAgentFactory {
+        Agent create(String[] subs, String[] pubs);
+    }
 
     public GenericConfig() {
+        this(TopicManagerSingleton.get());
+    }
+
+    /**
+     * Creates a config whose agents live on the topics of {@code topicManager},
+     * so several independent graphs can run in one process. Agent classes need a
+     * {@code (TopicManager, String[] subs, String[] pubs)} constructor to be
+     * created outside the default namespace.
+     */
+    public GenericConfig(TopicManager topicManager) {
+        if (topicManager == null) {
+            throw new IllegalArgumentException("Topic manager cannot be null");
+        }
+        this.topicManager = topicManager;
         this.agents = new ArrayList<>();
+        this.specs = new ArrayList<>();
     }
 
     @Override
@@ -24,30 +88,258 @@ public class GenericConfig implements Config {
             throw new IllegalStateException("Configuration file is not set.");
         }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(new File(confFile)))) {
-            List<String> lines = new ArrayList<>();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                lines.add(line.trim());
-            }
+        try (BufferedReader reader = new BufferedReader(new FileReader(new File(confFile)), 1 << 16)) {
+            load(reader);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to create configuration", e);
+        }
+    }
+
+    /**
+     * Creates the agents described by a configuration read from a stream,
+     * e.g. an uploaded file part, without writing it to disk first.
+     *
+     * @param in The configuration in the same 3-line-per-agent format as the file.
+     */
+    public void create(InputStream in) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+            load(reader);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to create configuration", e);
+        }
+    }
 
-            if (lines.size() % 3 != 0) {
+    private void load(BufferedReader reader) throws Exception {
+        // Stanzas are read a chunk at a time, so a large file is never held in memory as a whole
+        String[][] chunk = new String[LOAD_CHUNK][];
+        int count = 0;
+        String className;
+        while ((className = reader.readLine()) != null) {
+            String subsLine = reader.readLine();
+            String pubsLine = reader.readLine();
+            if (subsLine == null || pubsLine == null) {
                 throw new IllegalArgumentException("Invalid configuration format.");
             }
+            chunk[count++] = new String[]{className.trim(), subsLine.trim(), pubsLine.trim()};
+            if (count == chunk.length) {
+                addAll(chunk, count);
+                count = 0;
+            }
+        }
+        addAll(chunk, count);
+    }
+
+    private void addAll(String[][] stanzas, int count) throws ReflectiveOperationException {
+        AgentFactory[] factories = new AgentFactory[count];
+        for (int i = 0; i < count; i++) {
+            factories[i] = factory(stanzas[i][0]);
+        }
+        if (parallelLoad && count > 1) {
+            ParallelAgent[] created = new ParallelAgent[count];
+            IntStream.range(0, count).parallel().forEach(i -> created[i] = instantiate(factories[i], stanzas[i]));
+            for (int i = 0; i < count; i++) {
+                agents.add(created[i]);
+                specs.add(stanzas[i]);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                agents.add(instantiate(factories[i], stanzas[i]));
+                specs.add(stanzas[i]);
+            }
+        }
+    }
 
-            for (int i = 0; i < lines.size(); i += 3) {
-                String className = lines.get(i);
-                String[] subs = lines.get(i + 1).split(",");
-                String[] pubs = lines.get(i + 2).split(",");
-                Class<?> agentClass = Class.forName(className);
-                Constructor<?> constructor = agentClass.getConstructor(String[].class, String[].class);
-                Agent agent = (Agent) constructor.newInstance((Object) subs, (Object) pubs);
+    private void add(String className, String subsLine, String pubsLine) throws ReflectiveOperationException {
+        String[] stanza = {className, subsLine, pubsLine};
+        agents.add(instantiate(factory(className), stanza));
+        specs.add(stanza);
+    }
 
-                ParallelAgent parallelAgent = new ParallelAgent(agent);
-                agents.add(parallelAgent);
+    /** Creates the agent of a stanza and moves its subscriptions to a mailbox wrapper. */
+    private ParallelAgent instantiate(AgentFactory factory, String[] stanza) {
+        String[] subs = stanza[1].split(",");
+        String[] pubs = stanza[2].split(",");
+        Agent agent = factory.create(topicManager, subs, pubs);
+
+        // Route deliveries through the mailbox instead of the publisher's thread
+        ParallelAgent parallelAgent = new ParallelAgent(agent, ParallelAgent.DEFAULT_CAPACITY, policy);
+        TopicManager tm = topicManager;
+        for (String sub : subs) {
+            Topic topic = tm.getTopic(sub);
+            int slot = topic.slotOf(agent);
+            topic.unsubscribe(agent);
+            topic.subscribe(parallelAgent, slot);
+        }
+        return parallelAgent;
+    }
+
+    /**
+     * @return the cached factory for an agent class, resolving its
+     *         {@code (TopicManager, String[] subs, String[] pubs)} or
+     *         {@code (String[] subs, String[] pubs)} constructor on first use.
+     */
+    private static AgentFactory factory(String className) throws ReflectiveOperationException {
+        AgentFactory factory = FACTORIES.get(className);
+        if (factory == null) {
+            factory = resolve(className);
+            AgentFactory raced = FACTORIES.putIfAbsent(className, factory);
+            if (raced != null) {
+                factory = raced;
             }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to create configuration", e);
+        }
+        return factory;
+    }
+
+    private static AgentFactory resolve(String className) throws ReflectiveOperationException {
+        Class<?> agentClass = Class.forName(className);
+        if (!Agent.class.isAssignableFrom(agentClass)) {
+            throw new IllegalArgumentException(className + " is not an Agent");
+        }
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle constructor;
+        try {
+            constructor = lookup.findConstructor(agentClass,
+                    MethodType.methodType(void.class, TopicManager.class, String[].class, String[].class));
+        } catch (NoSuchMethodException e) {
+            constructor = lookup.findConstructor(agentClass,
+                    MethodType.methodType(void.class, String[].class, String[].class));
+            LegacyAgentFactory legacy = (LegacyAgentFactory) spin(className, lookup, constructor, LegacyAgentFactory.class);
+            return (tm, subs, pubs) -> {
+                // Such an agent always looks its topics up in the default namespace
+                if (tm != TopicManagerSingleton.get()) {
+                    throw new IllegalArgumentException(className + " has no (TopicManager, String[], String[]) constructor");
+                }
+                return legacy.create(subs, pubs);
+            };
+        }
+        return (AgentFactory) spin(className, lookup, constructor, AgentFactory.class);
+    }
+
+    private static Object spin(String className, MethodHandles.Lookup lookup, MethodHandle constructor, Class<?> factoryType) {
+        try {
+            // Spin a class that calls the constructor directly, as a constructor reference would
+            CallSite site = LambdaMetafactory.metafactory(lookup, "create",
+                    MethodType.methodType(factoryType),
+                    constructor.type().changeReturnType(Agent.class),
+                    constructor, constructor.type());
+            return site.getTarget().invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not create a factory for " + className, e);
+        }
+    }
+
+    /**
+     * Writes a binary checkpoint of the graph: the agents this config created
+     * and their topics, the last value of every topic, and the state of every
+     * {@link StatefulAgent}. Agent state is read on the calling thread, so
+     * pause the publishers and let the mailboxes drain first. The stream is
+     * flushed but not closed.
+     */
+    public void snapshot(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeInt(SNAPSHOT_VERSION);
+
+        List<Topic> topics = new ArrayList<>(topicManager.getTopics());
+        data.writeInt(topics.size());
+        for (Topic topic : topics) {
+            data.writeUTF(topic.name);
+            Message last = topic.getMsg();
+            if (last == null) {
+                data.writeInt(-1);
+            } else {
+                data.writeInt(last.data.length);
+                data.write(last.data);
+            }
+        }
+
+        // Each agent's state goes through a buffer so it can be length-prefixed
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        DataOutputStream stateOut = new DataOutputStream(state);
+        data.writeInt(agents.size());
+        for (int i = 0; i < agents.size(); i++) {
+            String[] spec = specs.get(i);
+            data.writeUTF(spec[0]);
+            data.writeUTF(spec[1]);
+            data.writeUTF(spec[2]);
+            Agent agent = agents.get(i).getAgent();
+            if (agent instanceof StatefulAgent) {
+                state.reset();
+                ((StatefulAgent) agent).saveState(stateOut);
+                stateOut.flush();
+                data.writeInt(state.size());
+                state.writeTo(data);
+            } else {
+                data.writeInt(-1);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Restores a checkpoint written by {@link #snapshot(OutputStream)} in one
+     * pass. A config without agents creates them from the snapshot, so no
+     * configuration file is needed; otherwise the snapshot must describe the
+     * agents already running, and only their state and the topic values are
+     * replaced. Topic values are set without being delivered. Restore before
+     * publishing resumes.
+     *
+     * @throws IOException If the stream is not a snapshot or ends early.
+     * @throws IllegalStateException If the running agents are not the ones in the snapshot.
+     */
+    public void restore(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if (data.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a graph snapshot");
+        }
+        int version = data.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        TopicManager tm = topicManager;
+        int topicCount = data.readInt();
+        for (int i = 0; i < topicCount; i++) {
+            Topic topic = tm.getTopic(data.readUTF());
+            int length = data.readInt();
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                data.readFully(bytes);
+                topic.restoreLast(new Message(bytes));
+            }
+        }
+
+        int agentCount = data.readInt();
+        boolean create = agents.isEmpty();
+        if (!create && agentCount != agents.size()) {
+            throw new IllegalStateException("Snapshot has " + agentCount + " agents but " + agents.size() + " are running");
+        }
+        byte[] state = new byte[256];
+        for (int i = 0; i < agentCount; i++) {
+            String[] spec = {data.readUTF(), data.readUTF(), data.readUTF()};
+            if (create) {
+                try {
+                    add(spec[0], spec[1], spec[2]);
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException("Failed to restore configuration", e);
+                }
+            } else if (!Arrays.equals(spec, specs.get(i))) {
+                throw new IllegalStateException("Agent " + i + " is a " + specs.get(i)[0] + " on " + specs.get(i)[1]
+                        + " but the snapshot has a " + spec[0] + " on " + spec[1]);
+            }
+            int length = data.readInt();
+            if (length < 0) {
+                continue;
+            }
+            if (length > state.length) {
+                state = new byte[Math.max(length, state.length * 2)];
+            }
+            data.readFully(state, 0, length);
+            Agent agent = agents.get(i).getAgent();
+            if (!(agent instanceof StatefulAgent)) {
+                throw new IllegalStateException("Agent " + i + " (" + spec[0] + ") has saved state but cannot restore it");
+            }
+            ((StatefulAgent) agent).restoreState(new DataInputStream(new ByteArrayInputStream(state, 0, length)));
         }
     }
 
@@ -61,14 +353,59 @@ public class GenericConfig implements Config {
         return 1;
     }
 
+    /**
+     * Detaches every agent from its topics, then closes it. The closed
+     * mailbox wrappers would otherwise stay subscribed and drop whatever is
+     * published to them from then on.
+     */
     @Override
     public void close() {
-        for (ParallelAgent agent : agents) {
+        TopicManager tm = topicManager;
+        for (int i = 0; i < agents.size(); i++) {
+            ParallelAgent agent = agents.get(i);
+            String[] stanza = specs.get(i);
+            for (String sub : stanza[1].split(",")) {
+                Topic topic = tm.findTopic(sub);
+                if (topic != null) {
+                    topic.unsubscribe(agent);
+                }
+            }
+            for (String pub : stanza[2].split(",")) {
+                Topic topic = tm.findTopic(pub);
+                if (topic != null) {
+                    topic.removePublisher(agent.getAgent());
+                }
+            }
             agent.close();
         }
+        agents.clear();
+        specs.clear();
     }
 
     public void setConfFile(String confFile) {
         this.confFile = confFile;
     }
+
+    /**
+     * Creates the agents of each chunk of the configuration on the common
+     * ForkJoinPool instead of one after another. The config still lists its
+     * agents in file order, but agents sharing a topic may subscribe to it in
+     * a different order, and new topics may get different ids, so only use it
+     * when nothing depends on creation order.
+     */
+    public void setParallelLoad(boolean parallelLoad) {
+        this.parallelLoad = parallelLoad;
+    }
+
+    /**
+     * Sets the mailbox policy of the agents created from now on;
+     * {@link ParallelAgent.BackpressurePolicy#CONFLATE} suits configurations
+     * where only the latest value of each topic matters.
+     */
+    public void setBackpressurePolicy(ParallelAgent.BackpressurePolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Policy cannot be null");
+        }
+        this.policy = policy;
+    }
 }
@@ -4,96 +4,578 @@ import java.util.*;
 import graph.Agent;
 import graph.Topic;
 import graph.Message;
+import graph.QueueingAgent;
 import graph.TopicManagerSingleton;
 import graph.TopicManagerSingleton.TopicManager;
+import graph.TopologyListener;
 
 public class Graph extends ArrayList<Node> {
     private HashMap<String, Node> nodeMap; // Maps names to Nodes for quick access
+    // Agent nodes by agent identity: agents of one class share a name but not a node
+    private IdentityHashMap<Agent, Node> agentNodes;
+    // What each node stands for, so the graph can be compiled back into something runnable
+    private HashMap<Node, Topic> topicsByNode;
+    private HashMap<Node, List<Agent>> agentsByNode;
+    // The subscriptions and publications behind the edges, one edge each
+    private HashSet<Link> links;
+    private IdentityHashMap<Agent, Integer> linksPerAgent;
+
+    // Incremental maintenance while attached to a TopicManager (see attach())
+    private TopicManager attachedTo;
+    private TopologyListener listener;
+    private HashMap<Node, Integer> ord; // a topological order of the acyclic part of the graph
+    private HashMap<Node, List<Node>> predecessors;
+    private HashSet<Edge> cyclicEdges; // edges left out of ord because they close a cycle
+    private int nextOrd;
 
     public Graph() {
         super();
         nodeMap = new HashMap<>();
+        agentNodes = new IdentityHashMap<>();
+        topicsByNode = new HashMap<>();
+        agentsByNode = new HashMap<>();
+        links = new HashSet<>();
+        linksPerAgent = new IdentityHashMap<>();
+    }
+
+    // Create graph from topics in TopicManager (the attached one, or the default namespace)
+    public synchronized void createFromTopics() {
+        createFromTopics(attachedTo != null ? attachedTo : TopicManagerSingleton.get());
     }
 
-    // Create graph from topics in TopicManager
-    public void createFromTopics() {
+    // Create graph from the topics of one TopicManager namespace
+    public synchronized void createFromTopics(TopicManager tm) {
+        if (attachedTo != null && attachedTo != tm) {
+            detach(); // no longer a view of the attached manager
+        }
         this.clear();
         nodeMap.clear();
+        agentNodes.clear();
+        topicsByNode.clear();
+        agentsByNode.clear();
+        links.clear();
+        linksPerAgent.clear();
+        // Rebuilt in one go below instead of edge by edge
+        ord = null;
+        predecessors = null;
+        cyclicEdges = null;
 
-        TopicManager tm = TopicManagerSingleton.get();
         Collection<Topic> topics = tm.getTopics();
 
         // Create Nodes for Topics
         for (Topic topic : topics) {
-            String topicNodeName = "T" + topic.name;
-            Node topicNode = nodeMap.computeIfAbsent(topicNodeName, Node::new);
-            this.add(topicNode);
+            findOrCreateTopicNode(topic);
         }
 
         // Create Edges based on subscriptions and publications
         for (Topic topic : topics) {
-            String topicNodeName = "T" + topic.name;
-            Node topicNode = nodeMap.get(topicNodeName);
-
-            if (topicNode == null) {
-                throw new IllegalStateException("Topic node not found: " + topicNodeName);
-            }
-
             for (Agent subscriber : topic.getSubs()) {
-                Node subscriberNode = findOrCreateAgentNode(subscriber);
-                topicNode.addEdge(subscriberNode); // topicNode -> subscriberNode
+                link(topic, subscriber, false); // topicNode -> subscriberNode
             }
 
             for (Agent publisher : topic.getPubs()) {
-                Node publisherNode = findOrCreateAgentNode(publisher);
-                publisherNode.addEdge(topicNode); // publisherNode -> topicNode
+                link(topic, publisher, true); // publisherNode -> topicNode
             }
         }
+
+        if (attachedTo != null) {
+            rebuildOrder();
+        }
     }
 
+    private Node findOrCreateTopicNode(Topic topic) {
+        String topicNodeName = "T" + topic.name;
+        Node topicNode = nodeMap.get(topicNodeName);
+        if (topicNode == null) {
+            topicNode = new Node(topicNodeName);
+            this.add(topicNode);
+            nodeMap.put(topicNodeName, topicNode);
+            topicsByNode.put(topicNode, topic);
+            if (ord != null) {
+                ord.put(topicNode, nextOrd++);
+                predecessors.put(topicNode, new ArrayList<>(2));
+            }
+        }
+        return topicNode;
+    }
 
     // Find or create a Node for an Agent
     private Node findOrCreateAgentNode(Agent agent) {
-        String agentNodeName = "A" + agent.getName();
-        Node node = nodeMap.get(agentNodeName);
+        Node node = agentNodes.get(unwrap(agent));
         if(node == null) {
-            node = new Node(agentNodeName);
+            node = new Node("A" + agent.getName());
             this.add(node);
-            nodeMap.put(agentNodeName, node);
+            agentNodes.put(unwrap(agent), node);
+            if (ord != null) {
+                ord.put(node, nextOrd++);
+                predecessors.put(node, new ArrayList<>(2));
+            }
+        }
+        // A mailbox wrapper shares the node of the agent it runs
+        List<Agent> agents = agentsByNode.computeIfAbsent(node, n -> new ArrayList<>());
+        boolean known = false;
+        for (Agent a : agents) {
+            known |= a == agent;
+        }
+        if (!known) {
+            agents.add(agent);
         }
         return node;
     }
 
-    // Check for cycles in the graph
-    public boolean hasCycles() {
+    // A mailbox wrapper subscribes in place of the agent it wraps, which still publishes itself
+    private static Agent unwrap(Agent agent) {
+        while (agent instanceof QueueingAgent) {
+            agent = ((QueueingAgent) agent).getAgent();
+        }
+        return agent;
+    }
+
+    // Adds the edge for a subscription (topic -> agent) or publication (agent -> topic), once
+    private void link(Topic topic, Agent agent, boolean publishes) {
+        if (!links.add(new Link(topic, agent, publishes))) {
+            return;
+        }
+        linksPerAgent.merge(agent, 1, Integer::sum);
+        Node topicNode = findOrCreateTopicNode(topic);
+        Node agentNode = findOrCreateAgentNode(agent);
+        if (publishes) {
+            addEdge(agentNode, topicNode);
+        } else {
+            addEdge(topicNode, agentNode);
+        }
+    }
+
+    private void unlink(Topic topic, Agent agent, boolean publishes) {
+        if (!links.remove(new Link(topic, agent, publishes))) {
+            return;
+        }
+        Node topicNode = nodeMap.get("T" + topic.name);
+        Node agentNode = agentNodes.get(unwrap(agent));
+        if (publishes) {
+            removeEdge(agentNode, topicNode);
+        } else {
+            removeEdge(topicNode, agentNode);
+        }
+        if (linksPerAgent.merge(agent, -1, Integer::sum) == 0) {
+            linksPerAgent.remove(agent);
+            forgetAgent(agent, agentNode);
+        }
+    }
+
+    // Drops an agent that no longer subscribes or publishes anywhere, and its node once empty.
+    // Only reached through topology events, so the reverse index exists
+    private void forgetAgent(Agent agent, Node node) {
+        List<Agent> agents = agentsByNode.get(node);
+        agents.removeIf(a -> a == agent);
+        if (!agents.isEmpty() || !node.getEdges().isEmpty() || !predecessors.get(node).isEmpty()) {
+            return;
+        }
+        agentsByNode.remove(node);
+        agentNodes.remove(unwrap(agent));
+        // Recently added agents sit near the end of the list
+        remove(lastIndexOf(node));
+        if (ord != null) {
+            ord.remove(node);
+            predecessors.remove(node);
+        }
+    }
+
+    private void addEdge(Node from, Node to) {
+        boolean existed = ord != null && from.getEdges().contains(to);
+        from.addEdge(to);
+        if (ord != null && !existed) {
+            predecessors.get(to).add(from);
+            insertOrdered(from, to);
+        }
+    }
+
+    private void removeEdge(Node from, Node to) {
+        from.removeEdge(to);
+        if (ord == null || from.getEdges().contains(to)) {
+            return;
+        }
+        predecessors.get(to).remove(from);
+        if (cyclicEdges.remove(new Edge(from, to)) || cyclicEdges.isEmpty()) {
+            return;
+        }
+        // Removing an ordered edge may have broken the path that made a cyclic edge cyclic
+        List<Edge> retry = new ArrayList<>(cyclicEdges);
+        cyclicEdges.clear();
+        for (Edge e : retry) {
+            insertOrdered(e.from, e.to);
+        }
+    }
+
+    /**
+     * Keeps this graph in step with the TopicManager: after one full
+     * {@link #createFromTopics()}, topology changes are applied as they
+     * happen. {@link #hasCycles()} is then answered from a topological order
+     * that is repaired on every edge insert (Pearce-Kelly), so one insert
+     * only touches the nodes between the edge's endpoints in that order.
+     */
+    public synchronized void attach(TopicManager tm) {
+        detach();
+        attachedTo = tm;
+        listener = new TopologyListener() {
+            @Override
+            public void topicCreated(Topic topic) {
+                synchronized (Graph.this) {
+                    findOrCreateTopicNode(topic);
+                }
+            }
+
+            @Override
+            public void subscribed(Topic topic, Agent agent) {
+                synchronized (Graph.this) {
+                    link(topic, agent, false);
+                }
+            }
+
+            @Override
+            public void unsubscribed(Topic topic, Agent agent) {
+                synchronized (Graph.this) {
+                    unlink(topic, agent, false);
+                }
+            }
+
+            @Override
+            public void publisherAdded(Topic topic, Agent agent) {
+                synchronized (Graph.this) {
+                    link(topic, agent, true);
+                }
+            }
+
+            @Override
+            public void publisherRemoved(Topic topic, Agent agent) {
+                synchronized (Graph.this) {
+                    unlink(topic, agent, true);
+                }
+            }
+
+            @Override
+            public void topicsCleared() {
+                synchronized (Graph.this) {
+                    createFromTopics();
+                }
+            }
+        };
+        // Listen first: changes racing with the scan are then applied twice, which links ignore
+        tm.addTopologyListener(listener);
+        createFromTopics();
+    }
+
+    /** Stops following topology changes; the graph keeps its current shape. */
+    public synchronized void detach() {
+        if (attachedTo != null) {
+            attachedTo.removeTopologyListener(listener);
+        }
+        attachedTo = null;
+        listener = null;
+        ord = null;
+        predecessors = null;
+        cyclicEdges = null;
+    }
+
+    public synchronized boolean isAttached() {
+        return attachedTo != null;
+    }
+
+    private void rebuildOrder() {
+        ord = new HashMap<>(size() * 2);
+        predecessors = new HashMap<>(size() * 2);
+        cyclicEdges = new HashSet<>();
+        nextOrd = 0;
+        for (Node node : this) {
+            predecessors.put(node, new ArrayList<>(2));
+        }
+        List<Node> order;
+        try {
+            order = topologicalOrder();
+        } catch (IllegalStateException e) {
+            order = null;
+        }
+        if (order != null) {
+            for (Node node : order) {
+                ord.put(node, nextOrd++);
+                for (Node next : new LinkedHashSet<>(node.getEdges())) {
+                    predecessors.get(next).add(node);
+                }
+            }
+            return;
+        }
+        // Cyclic to begin with: re-add the edges one at a time so the cycle-closing ones are found
+        List<Edge> edges = new ArrayList<>();
         for (Node node : this) {
-            if (hasCyclesHelper(node, new HashSet<>(), new HashSet<>())) {
-                return true; // Cycle detected
+            ord.put(node, nextOrd++);
+            for (Node next : node.getEdges()) {
+                edges.add(new Edge(node, next));
             }
+            node.getEdges().clear();
+        }
+        for (Edge e : edges) {
+            addEdge(e.from, e.to);
         }
-        return false;
     }
 
-    // Helper method for cycle detection
-    private boolean hasCyclesHelper(Node current, Set<Node> visited, Set<Node> stack) {
-        if (stack.contains(current)) {
-            return true; // Cycle detected
+    /**
+     * Pearce-Kelly: restores the topological order after adding from -> to.
+     * If the edge closes a cycle it is kept out of the order and recorded
+     * in cyclicEdges instead.
+     */
+    private void insertOrdered(Node from, Node to) {
+        int lower = ord.get(to);
+        int upper = ord.get(from);
+        if (lower > upper) {
+            return; // already in order
         }
-        if (visited.contains(current)) {
-            return false; // Node already processed
+        List<Node> forward = new ArrayList<>();
+        if (from == to || !collect(to, true, lower, upper, from, forward)) {
+            cyclicEdges.add(new Edge(from, to));
+            return;
         }
+        List<Node> backward = new ArrayList<>();
+        collect(from, false, lower, upper, null, backward);
 
-        visited.add(current);
-        stack.add(current);
+        // Everything reaching "from" moves ahead of everything reachable from "to", reusing their slots
+        Comparator<Node> byOrd = Comparator.comparingInt(ord::get);
+        forward.sort(byOrd);
+        backward.sort(byOrd);
+        int[] slots = new int[forward.size() + backward.size()];
+        int i = 0;
+        for (Node n : backward) {
+            slots[i++] = ord.get(n);
+        }
+        for (Node n : forward) {
+            slots[i++] = ord.get(n);
+        }
+        Arrays.sort(slots);
+        i = 0;
+        for (Node n : backward) {
+            ord.put(n, slots[i++]);
+        }
+        for (Node n : forward) {
+            ord.put(n, slots[i++]);
+        }
+    }
 
-        for (Node neighbor : current.getEdges()) {
-            if (hasCyclesHelper(neighbor, visited, stack)) {
-                return true;
+    /**
+     * Iterative DFS over ordered edges, forward (successors) or backward
+     * (predecessors), staying inside [lower, upper] of the order.
+     *
+     * @return false if the search reached {@code stop}, which means a cycle.
+     */
+    private boolean collect(Node start, boolean forwards, int lower, int upper, Node stop, List<Node> found) {
+        Set<Node> seen = new HashSet<>();
+        ArrayDeque<Node> todo = new ArrayDeque<>();
+        todo.push(start);
+        seen.add(start);
+        while (!todo.isEmpty()) {
+            Node n = todo.pop();
+            found.add(n);
+            for (Node next : forwards ? n.getEdges() : predecessors.get(n)) {
+                if (!cyclicEdges.isEmpty()
+                        && cyclicEdges.contains(forwards ? new Edge(n, next) : new Edge(next, n))) {
+                    continue;
+                }
+                if (next == stop) {
+                    return false;
+                }
+                int o = ord.get(next);
+                if (o < lower || o > upper || seen.contains(next)) {
+                    continue;
+                }
+                seen.add(next);
+                todo.push(next);
             }
         }
+        return true;
+    }
+
+    // A subscription (topic -> agent) or publication (agent -> topic), by identity
+    private static final class Link {
+        final Topic topic;
+        final Agent agent;
+        final boolean publishes;
 
-        stack.remove(current);
-        return false;
+        Link(Topic topic, Agent agent, boolean publishes) {
+            this.topic = topic;
+            this.agent = agent;
+            this.publishes = publishes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Link)) {
+                return false;
+            }
+            Link other = (Link) o;
+            return topic == other.topic && agent == other.agent && publishes == other.publishes;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(topic) + System.identityHashCode(agent)) + (publishes ? 1 : 0);
+        }
+    }
+
+    private static final class Edge {
+        final Node from;
+        final Node to;
+
+        Edge(Node from, Node to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Edge && ((Edge) o).from == from && ((Edge) o).to == to;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(from) + System.identityHashCode(to);
+        }
+    }
+
+    /**
+     * Orders the nodes so every edge points forward (Kahn's algorithm).
+     *
+     * @throws IllegalStateException If the graph has a cycle.
+     */
+    public synchronized List<Node> topologicalOrder() {
+        List<Node> nodes = new ArrayList<>(size());
+        int[] order = snapshot(nodes).topologicalOrder();
+        List<Node> sorted = new ArrayList<>(order.length);
+        for (int v : order) {
+            sorted.add(nodes.get(v));
+        }
+        return sorted;
+    }
+
+    /**
+     * Compiles the graph built by {@link #createFromTopics()} into an
+     * {@link ExecutionPlan} that runs its agents in topological order.
+     * Agents are grouped into layers by their longest distance from a source
+     * node; agents in the same layer never depend on each other.
+     *
+     * A plan can only order work it runs itself, so agents that hand their
+     * messages to another thread, like the {@link ParallelAgent}s of a
+     * {@link GenericConfig}, are rejected.
+     *
+     * @throws IllegalStateException If the graph has a cycle or a {@link QueueingAgent}.
+     */
+    public synchronized ExecutionPlan compile() {
+        List<Node> nodes = new ArrayList<>(size());
+        CsrGraph csr = snapshot(nodes);
+        int[] depth = csr.depths();
+
+        List<Agent> agents = new ArrayList<>();
+        List<Integer> agentDepths = new ArrayList<>();
+        List<Topic> topics = new ArrayList<>();
+        for (int v : csr.topologicalOrder()) {
+            Node node = nodes.get(v);
+            Topic topic = topicsByNode.get(node);
+            if (topic != null) {
+                topics.add(topic);
+            }
+            List<Agent> nodeAgents = agentsByNode.get(node);
+            if (nodeAgents != null) {
+                for (Agent agent : nodeAgents) {
+                    if (agent instanceof QueueingAgent) {
+                        throw new IllegalStateException("Agent " + agent.getName()
+                                + " runs on its own thread and cannot be ordered by an execution plan");
+                    }
+                    agents.add(agent);
+                    agentDepths.add(depth[v]);
+                }
+            }
+        }
+        return new ExecutionPlan(agents, agentDepths, topics);
+    }
+
+    // Check for cycles in the graph: one O(V+E) pass over the strongly connected components,
+    // or a lookup when the graph is attached and tracks cycle-closing edges as they appear
+    public synchronized boolean hasCycles() {
+        if (cyclicEdges != null) {
+            return !cyclicEdges.isEmpty();
+        }
+        return snapshot(new ArrayList<>(size())).hasCycles();
+    }
+
+    /**
+     * Finds the strongly connected components with an iterative Tarjan pass.
+     * A component with more than one node (or a node with an edge to itself)
+     * is a cycle.
+     *
+     * @return every component, in reverse topological order.
+     */
+    public synchronized List<List<Node>> stronglyConnectedComponents() {
+        List<Node> nodes = new ArrayList<>(size());
+        int[] componentOf = snapshot(nodes).stronglyConnectedComponents();
+        int count = 0;
+        for (int c : componentOf) {
+            count = Math.max(count, c + 1);
+        }
+        List<List<Node>> components = new ArrayList<>(count);
+        for (int c = 0; c < count; c++) {
+            components.add(new ArrayList<>(1));
+        }
+        for (int v = 0; v < nodes.size(); v++) {
+            components.get(componentOf[v]).add(nodes.get(v));
+        }
+        return components;
+    }
+
+    /**
+     * @return an immutable compressed-sparse-row copy of the graph; node ids
+     *         follow the order of this list.
+     */
+    public synchronized CsrGraph toCsr() {
+        return snapshot(new ArrayList<>(size()), true);
+    }
+
+    private CsrGraph snapshot(List<Node> nodes) {
+        return snapshot(nodes, false);
+    }
+
+    // Numbers the nodes 0..n-1 into the given list and lays their edges out in CSR form
+    private CsrGraph snapshot(List<Node> nodes, boolean internNames) {
+        Map<Node, Integer> ids = new IdentityHashMap<>(size() * 2);
+        int edgeCount = 0;
+        for (Node node : this) {
+            if (ids.putIfAbsent(node, nodes.size()) == null) {
+                nodes.add(node);
+                edgeCount += node.getEdges().size();
+            }
+        }
+        int[] offsets = new int[nodes.size() + 1];
+        int[] targets = new int[edgeCount];
+        int e = 0;
+        // nodes grows if an edge leads to a node missing from the graph's own list
+        for (int v = 0; v < nodes.size(); v++) {
+            offsets[v] = e;
+            for (Node neighbor : nodes.get(v).getEdges()) {
+                Integer id = ids.get(neighbor);
+                if (id == null) {
+                    id = nodes.size();
+                    ids.put(neighbor, id);
+                    nodes.add(neighbor);
+                    offsets = Arrays.copyOf(offsets, nodes.size() + 1);
+                }
+                if (e == targets.length) {
+                    targets = Arrays.copyOf(targets, targets.length * 2 + 1);
+                }
+                targets[e++] = id;
+            }
+        }
+        offsets[nodes.size()] = e;
+        String[] names = new String[nodes.size()];
+        for (int v = 0; v < names.length; v++) {
+            names[v] = nodes.get(v).getName();
+        }
+        return new CsrGraph(names, offsets, targets, internNames);
     }
 
 }
@@ -1,26 +1,30 @@
 package config;
 
-import graph.Agent;
+import graph.IndexedAgent;
 import graph.Message;
 import graph.Topic;
 import graph.TopicManagerSingleton;
 
-public class IncAgent implements Agent {
+public class IncAgent implements IndexedAgent {
     private final String name;
     private final Topic input;
     private final Topic output;
 
     public IncAgent(String[] subs, String[] pubs) {
+        this(TopicManagerSingleton.get(), subs, pubs);
+    }
+
+    /** Creates the agent on the topics of one namespace; see {@link GenericConfig#GenericConfig(TopicManagerSingleton.TopicManager)}. */
+    public IncAgent(TopicManagerSingleton.TopicManager manager, String[] subs, String[] pubs) {
         if (subs.length < 1 || pubs.length < 1) {
             throw new IllegalArgumentException("IncAgent requires at least 1 sub and 1 pub.");
         }
 
         this.name = "IncAgent";
-        TopicManagerSingleton.TopicManager manager = TopicManagerSingleton.get();
         this.input = manager.getTopic(subs[0]);
         this.output = manager.getTopic(pubs[0]);
 
-        this.input.subscribe(this);
+        this.input.subscribe(this, 0);
         this.output.addPublisher(this);
     }
 
@@ -36,12 +40,26 @@ public class IncAgent implements Agent {
     ;
     @Override
     public void callback(String topic, Message msg) {
+        callback(topic, msg.asDouble);
+    }
+
+    @Override
+    public void callback(String topic, double value) {
         if (topic.equals(input.name)) {
-            double incrementedValue = msg.asDouble + 1;
-            output.publish(new Message(incrementedValue));
+            output.publish(value + 1);
         }
     }
 
+    @Override
+    public void callback(int slot, Message msg) {
+        callback(slot, msg.asDouble);
+    }
+
+    @Override
+    public void callback(int slot, double value) {
+        output.publish(value + 1);
+    }
+
     @Override
     public void close() {
         input.unsubscribe(this);
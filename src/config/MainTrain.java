@@ -1,14 +1,30 @@
 package config;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.TreeMap;
 
 import graph.TopicManagerSingleton.TopicManager;
 import graph.TopicManagerSingleton;
 import graph.Message;
 import graph.Agent;
+import graph.Topic;
+import server.MultipartStream;
+import server.MyHTTPServer;
+import server.RequestParser.RequestInfo;
+import server.Servlet;
 
 public class MainTrain {
 
@@ -123,10 +139,331 @@ public class MainTrain {
         if (!g.hasCycles())
             System.out.println("Wrong result in hasCycles for topics graph with a cycle (-10)");
     }
+
+    public static void testComponents(){
+        TopicManager tm=TopicManagerSingleton.get();
+        tm.clear();
+        new MathExampleConfig().create();
+        Graph g=new Graph();
+        g.createFromTopics();
+
+        List<List<Node>> sccs=g.stronglyConnectedComponents();
+        if(sccs.size()!=8)
+            System.out.println("wrong number of strongly connected components without cycles (-10)");
+
+        GetAgent ga=new GetAgent("R3");
+        tm.getTopic("A").addPublisher(ga); // cycle through everything but B
+        g.createFromTopics();
+        sccs=g.stronglyConnectedComponents();
+        List<Node> largest=Collections.emptyList();
+        for(List<Node> scc : sccs){
+            if(scc.size()>largest.size())
+                largest=scc;
+        }
+        List<String> names=new ArrayList<>();
+        for(Node n : largest){
+            names.add(n.getName());
+        }
+        Collections.sort(names);
+        if(sccs.size()!=2 || !names.equals(Arrays.asList("AGet Agent","Aminus","Amul","Aplus","TA","TR1","TR2","TR3")))
+            System.out.println("wrong strongly connected components for a graph with a cycle (-10)");
+        if(!g.hasCycles())
+            System.out.println("Wrong result in hasCycles for a cycle found by the components (-10)");
+    }
+
+    public static void testCompileOrder(){
+        TopicManager tm=TopicManagerSingleton.get();
+        tm.clear();
+        new MathExampleConfig().create();
+        Graph g=new Graph();
+        g.createFromTopics();
+        ExecutionPlan plan=g.compile();
+
+        List<List<Agent>> layers=plan.getLayers();
+        List<String> first=new ArrayList<>();
+        for(Agent a : layers.get(0)){
+            first.add(a.getName());
+        }
+        Collections.sort(first);
+        if(layers.size()!=2 || !first.equals(Arrays.asList("minus","plus")) || !layers.get(1).get(0).getName().equals("mul"))
+            System.out.println("compile() did not order the agents by their dependencies (-10)");
+
+        List<Topic> topics=plan.getTopics();
+        if(topics.indexOf(tm.getTopic("R1"))>topics.indexOf(tm.getTopic("R3")) || topics.indexOf(tm.getTopic("A"))>topics.indexOf(tm.getTopic("R1")))
+            System.out.println("compile() did not order the topics by their dependencies (-10)");
+
+        GetAgent ga=new GetAgent("R3");
+        tm.getTopic("A").addPublisher(ga);
+        g.createFromTopics();
+        boolean rejected=false;
+        try{
+            g.compile();
+        }catch(IllegalStateException e){
+            rejected=true;
+        }
+        if(!rejected)
+            System.out.println("compile() accepted a graph with a cycle (-10)");
+    }
+
+    // A graph's shape as sorted node names and edges, to compare two graphs built differently
+    private static List<String> shapeOf(Graph g){
+        List<String> shape=new ArrayList<>();
+        for(Node n : g){
+            shape.add(n.getName());
+            for(Node to : n.getEdges()){
+                shape.add(n.getName()+"->"+to.getName());
+            }
+        }
+        Collections.sort(shape);
+        return shape;
+    }
+
+    public static void testIncrementalGraph(){
+        TopicManager tm=TopicManagerSingleton.get();
+        tm.clear();
+        Graph attached=new Graph();
+        attached.attach(tm);
+
+        Random r=new Random(7);
+        List<Agent> agents=new ArrayList<>();
+        for(int i=0;i<20;i++){
+            final String name="P"+i;
+            agents.add(new Agent(){
+                public String getName(){ return name; }
+                public void reset(){}
+                public void callback(String topic, Message msg){}
+                public void close(){}
+            });
+        }
+        boolean same=true, sameCycles=true;
+        for(int step=0;step<2000 && same && sameCycles;step++){
+            Topic t=tm.getTopic("T"+r.nextInt(12));
+            Agent a=agents.get(r.nextInt(agents.size()));
+            switch(r.nextInt(4)){
+                case 0: t.subscribe(a); break;
+                case 1: t.unsubscribe(a); break;
+                case 2: t.addPublisher(a); break;
+                default: t.removePublisher(a); break;
+            }
+            if(step%50==0 || step>1950){
+                Graph rebuilt=new Graph();
+                rebuilt.createFromTopics(tm);
+                same=shapeOf(attached).equals(shapeOf(rebuilt));
+                sameCycles=attached.hasCycles()==rebuilt.hasCycles();
+            }
+        }
+        // Take every link away again, so the order repair has to undo the cycles too
+        for(Topic t : tm.getTopics()){
+            for(Agent a : agents){
+                t.unsubscribe(a);
+                t.removePublisher(a);
+            }
+        }
+        if(attached.hasCycles())
+            System.out.println("the attached graph still has cycles after all links were removed (-10)");
+        attached.detach();
+        if(!same)
+            System.out.println("the attached graph does not match a full rebuild from topics (-10)");
+        if(!sameCycles)
+            System.out.println("the attached graph disagrees with a full rebuild on hasCycles (-10)");
+    }
+
+    // A servlet that answers with its name and the parameters it was given, sorted
+    static Servlet route(String name){
+        return new Servlet(){
+            public void handle(RequestInfo ri, OutputStream toClient) throws IOException{
+                byte[] body=(name+new TreeMap<>(ri.getParameters())).getBytes(StandardCharsets.UTF_8);
+                toClient.write(("HTTP/1.1 200 OK\r\nContent-Length: "+body.length+"\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                toClient.write(body);
+            }
+            public void close(){}
+        };
+    }
+
+    // The body of the response to a GET, or the status line if no servlet answered
+    static String get(int port, String uri) throws IOException{
+        try(Socket s=new Socket("localhost",port)){
+            s.setSoTimeout(5000);
+            s.getOutputStream().write(("GET "+uri+" HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            InputStream in=s.getInputStream();
+            ByteArrayOutputStream response=new ByteArrayOutputStream();
+            byte[] buf=new byte[1024];
+            for(int n;(n=in.read(buf))>0;)
+                response.write(buf,0,n);
+            String text=new String(response.toByteArray(),StandardCharsets.UTF_8);
+            return text.startsWith("HTTP/1.1 200") ? text.substring(text.indexOf("\r\n\r\n")+4) : text.split("\r\n")[0];
+        }
+    }
+
+    public static void testRouting(){
+        int port;
+        try(ServerSocket probe=new ServerSocket(0)){
+            port=probe.getLocalPort();
+        }catch(IOException e){
+            System.out.println("no free port for the routing checks (-10)");
+            return;
+        }
+        MyHTTPServer server=new MyHTTPServer(port,2);
+        server.addServlet("GET","/api",route("api"));
+        server.addServlet("GET","/api/topics/{id}",route("param"));
+        server.addServlet("GET","/api/topics/list",route("literal"));
+        server.addServlet("GET","/files/{name}/raw",route("raw"));
+        server.addServlet("GET","/files/static/css",route("css"));
+        server.start();
+        try{
+            for(int tries=0;tries<50;tries++){
+                try(Socket s=new Socket("localhost",port)){
+                    break;
+                }catch(IOException e){
+                    Thread.sleep(20);
+                }
+            }
+            if(!get(port,"/api/topics/list").equals("literal{}"))
+                System.out.println("a literal route did not win over a {param} route (-10)");
+            if(!get(port,"/api/topics/A").equals("param{id=A}"))
+                System.out.println("a {param} route did not capture its segment (-10)");
+            if(!get(port,"/files/static/raw").equals("raw{name=static}"))
+                System.out.println("no fallback to the {param} route when the literal subtree has no match (-10)");
+            if(!get(port,"/files/static/css").equals("css{}"))
+                System.out.println("the literal subtree lost to a {param} route it should beat (-10)");
+            if(!get(port,"/api/other/deep").equals("api{}"))
+                System.out.println("an unknown path did not fall back to its longest registered prefix (-10)");
+            if(!get(port,"/api/topics/A/more").equals("param{id=A}"))
+                System.out.println("a path past a {param} route did not fall back to it (-10)");
+            if(get(port,"/nothing").startsWith("HTTP/1.1 200"))
+                System.out.println("a path with no registered prefix was served (-10)");
+
+            server.removeServlet("GET","/api/topics/list");
+            if(!get(port,"/api/topics/list").equals("param{id=list}"))
+                System.out.println("removing a literal route did not expose the overlapping {param} route (-10)");
+            server.removeServlet("GET","/api/topics/{id}");
+            if(!get(port,"/api/topics/A").equals("api{}"))
+                System.out.println("removing a {param} route did not fall back to the prefix (-10)");
+            server.addServlet("GET","/api/topics/{id}",route("param"));
+            server.addServlet("GET","/api/topics/{id}",route("param2"));
+            if(!get(port,"/api/topics/B").equals("param2{id=B}"))
+                System.out.println("putting a route again did not replace its servlet (-10)");
+
+            boolean rejected=false;
+            try{
+                server.addServlet("GET","/api/topics/{name}",route("renamed"));
+            }catch(IllegalArgumentException e){
+                rejected=true;
+            }
+            if(!rejected)
+                System.out.println("a route naming a parameter differently at the same position was accepted (-10)");
+            if(!get(port,"/api/topics/C").equals("param2{id=C}"))
+                System.out.println("a rejected route changed the existing ones (-10)");
+        }catch(IOException e){
+            System.out.println("routing check failed: "+e+" (-10)");
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }finally{
+            server.close();
+        }
+    }
+
+    static String readAll(InputStream in) throws IOException{
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        byte[] buf=new byte[700];
+        for(int n;(n=in.read(buf))!=-1;)
+            out.write(buf,0,n);
+        return new String(out.toByteArray(),StandardCharsets.ISO_8859_1);
+    }
+
+    // A body that hands out at most `step` bytes per read, so delimiters arrive split across reads
+    static InputStream trickle(String body, int step){
+        return new FilterInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.ISO_8859_1))){
+            public int read(byte[] b, int off, int len) throws IOException{
+                return super.read(b,off,Math.min(len,step));
+            }
+        };
+    }
+
+    static String part(String name, String content){
+        return "Content-Disposition: form-data; name=\""+name+"\"\r\n\r\n"+content+"\r\n--XyZ";
+    }
+
+    // name=content;... for every part, reading each one only if `read` says so
+    static String parts(MultipartStream body, boolean read) throws IOException{
+        StringBuilder seen=new StringBuilder();
+        for(MultipartStream.Part p;(p=body.nextPart())!=null;){
+            seen.append(p.getName()).append('=');
+            if(read)
+                seen.append(readAll(p.getInputStream()));
+            seen.append(';');
+        }
+        return seen.toString();
+    }
+
+    public static void testMultipart(){
+        String two="--XyZ\r\n"+part("a","hello")+"\r\n"+part("b","almost \r\n--XyY but not")+"--\r\n";
+        try{
+            if(!parts(new MultipartStream(new ByteArrayInputStream(two.getBytes(StandardCharsets.ISO_8859_1)),"XyZ"),true)
+                    .equals("a=hello;b=almost \r\n--XyY but not;"))
+                System.out.println("a body starting with --boundary was not split into its parts (-10)");
+            if(!parts(new MultipartStream(trickle("preamble, ignore me\r\n"+two,1000),"XyZ"),true)
+                    .equals("a=hello;b=almost \r\n--XyY but not;"))
+                System.out.println("a preamble before the first boundary was not skipped (-10)");
+            boolean split=true;
+            for(int step=1;step<=13 && split;step++)
+                split=parts(new MultipartStream(trickle(two,step),"XyZ"),true).equals("a=hello;b=almost \r\n--XyY but not;");
+            char[] filler=new char[8190];
+            Arrays.fill(filler,'x');
+            String big=new String(filler);
+            split&=parts(new MultipartStream(trickle("--XyZ\r\n"+part("big",big)+"--\r\n",8192),"XyZ"),true).equals("big="+big+";");
+            if(!split)
+                System.out.println("a delimiter split across reads was not recognized (-10)");
+            if(!parts(new MultipartStream(trickle(two,3),"XyZ"),false).equals("a=;b=;"))
+                System.out.println("nextPart() did not skip a part that was not read (-10)");
+        }catch(IOException e){
+            System.out.println("a valid multipart body failed: "+e+" (-10)");
+        }
+
+        // Cut after a complete part, then in the middle of one: the error must come from nextPart(), then from the read
+        boolean failed=false;
+        try{
+            MultipartStream body=new MultipartStream(trickle("--XyZ\r\n"+part("a","hello"),5),"XyZ");
+            readAll(body.nextPart().getInputStream());
+            body.nextPart();
+        }catch(IOException e){
+            failed=true;
+        }
+        if(!failed)
+            System.out.println("a body ending after a part's delimiter did not raise an IOException (-10)");
+        MultipartStream.Part cut=null;
+        try{
+            cut=new MultipartStream(trickle("--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nhel",5),"XyZ").nextPart();
+        }catch(IOException e){
+            System.out.println("the headers of a truncated part failed to parse: "+e+" (-10)");
+        }
+        failed=false;
+        try{
+            if(cut!=null)
+                readAll(cut.getInputStream());
+        }catch(IOException e){
+            failed=true;
+        }
+        if(cut!=null && !failed)
+            System.out.println("reading a part cut off before its boundary did not raise an IOException (-10)");
+
+        if(!"a=b c:d".equals(MultipartStream.boundaryOf("multipart/form-data; boundary=\"a=b c:d\"")))
+            System.out.println("boundaryOf did not unquote a quoted boundary (-10)");
+        if(!"xyz".equals(MultipartStream.boundaryOf("Multipart/Form-Data; charset=utf-8; boundary=xyz")))
+            System.out.println("boundaryOf missed a boundary after another parameter (-10)");
+        if(MultipartStream.boundaryOf("text/plain; boundary=xyz")!=null)
+            System.out.println("boundaryOf accepted a non-multipart type (-10)");
+    }
+
     public static void main(String[] args) {
         testCycles();
         testBinGraph();
         testTopicsGraph();
+        testComponents();
+        testCompileOrder();
+        testIncrementalGraph();
+        testRouting();
+        testMultipart();
         System.out.println("done");
     }
 
@@ -1,14 +1,25 @@
 package config;
 
-
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
 
 public class MathExampleConfig implements Config {
+    private final TopicManager topicManager;
+
+    public MathExampleConfig() {
+        this(TopicManagerSingleton.get());
+    }
+
+    /** Builds the example on the topics of one namespace. */
+    public MathExampleConfig(TopicManager topicManager) {
+        this.topicManager = topicManager;
+    }
 
     @Override
     public void create() {
-
-        new BinOpAgent("minus", "A", "B", "R2", (x, y) -> x - y);
-        new BinOpAgent("mul", "R1", "R2", "R3", (x, y) -> x * y);
+        BinOpAgent.of(topicManager, "plus", "A", "B", "R1", (x, y) -> x + y);
+        BinOpAgent.of(topicManager, "minus", "A", "B", "R2", (x, y) -> x - y);
+        BinOpAgent.of(topicManager, "mul", "R1", "R2", "R3", (x, y) -> x * y);
     }
 
     @Override
@@ -2,7 +2,10 @@ package config;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
 
 import java.util.Set;
 
@@ -43,28 +46,42 @@ public class Node {
         edges.add(n);
     }
 
+    //remove one edge to Node; false if there was none
+    public boolean removeEdge(Node n) {
+        return edges.remove(n);
+    }
+
 
-    //hasCycle - Check for cycles in the graph
+    //hasCycle - Check for cycles reachable from this node
     public Boolean hasCycles() {
+        // Iterative DFS: "stack" holds the nodes on the current path, "visited" the finished ones
         Set<Node> visited = new HashSet<Node>();
         Set<Node> stack = new HashSet<Node>();
-        return hasCycleLP(this,visited,stack);
-    }
-    private Boolean hasCycleLP(Node current,Set<Node> visited, Set<Node> stack) {
-        if (visited.contains(current)) {
-            return true; //Cycle detected
-        }
-        if(stack.contains(current)) {
-            return false; //Node already processed
-        }
-        visited.add(current);
-        stack.add(current);
-        for (Node n : current.getEdges()) {
-            if (hasCycleLP(n,visited,stack)) {
-                return true;
+        Deque<Node> path = new ArrayDeque<Node>();
+        Deque<Iterator<Node>> pending = new ArrayDeque<Iterator<Node>>();
+        path.push(this);
+        pending.push(edges.iterator());
+        stack.add(this);
+        while (!path.isEmpty()) {
+            Iterator<Node> it = pending.peek();
+            if (!it.hasNext()) {
+                Node done = path.pop();
+                pending.pop();
+                stack.remove(done);
+                visited.add(done);
+                continue;
+            }
+            Node n = it.next();
+            if (stack.contains(n)) {
+                return true; //Cycle detected
+            }
+            if (visited.contains(n)) {
+                continue; //Node already processed
             }
+            stack.add(n);
+            path.push(n);
+            pending.push(n.getEdges().iterator());
         }
-        stack.remove(current);
         return false;
     }
-}
\ No newline at end of file
+}
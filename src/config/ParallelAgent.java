@@ -1,13 +1,96 @@
 package config;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 import graph.Agent;
+import graph.IndexedAgent;
 import graph.Message;
+import graph.Metrics;
+import graph.QueueingAgent;
+import graph.Topic;
+
+/**
+ * Decorates an agent with its own bounded mailbox and worker thread, so
+ * {@link #callback(String, Message)} only enqueues and the publisher's thread
+ * never runs the wrapped agent's logic. Slotted deliveries keep their slot
+ * through the mailbox, so an {@link IndexedAgent} is still called by slot.
+ * The worker thread is started by the first delivery, so building a large
+ * graph does not pay for a thread per agent up front.
+ */
+public class ParallelAgent implements IndexedAgent, QueueingAgent {
+
+    /** What {@link #callback(String, Message)} does when the mailbox is full. */
+    public enum BackpressurePolicy {
+        /** Block the publisher until the worker frees a slot. */
+        BLOCK,
+        /** Evict the oldest queued message to make room for the new one. */
+        DROP_OLDEST,
+        /** Discard the incoming message. */
+        DROP_NEWEST,
+        /**
+         * Keep only the latest undelivered message per input: a new value
+         * replaces one the worker has not picked up yet, so the publisher
+         * never waits and the backlog is at most one message per input.
+         */
+        CONFLATE
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** Sentinel that tells the worker to stop once everything before it is drained. */
+    private static final Envelope POISON = new Envelope(null, Topic.Subscription.NO_SLOT, null);
 
-public class ParallelAgent implements Agent {
     private final Agent agent;
+    private final BlockingQueue<Envelope> mailbox;
+    private final BackpressurePolicy policy;
+    private final Thread worker;
+    // CONFLATE only: the newest undelivered envelope per input. The mailbox then
+    // holds one envelope per input that has something waiting, acting as a marker.
+    private final ConcurrentHashMap<Object, Envelope> latest;
+    private final Metrics.Recorder workerMetrics = new Metrics.Recorder();
+    private volatile boolean closed = false;
+    // Guarded by this for writes; read without locking on the delivery path
+    private volatile boolean started = false;
+    // Publishers between their closed check and the end of their enqueue; close() waits for
+    // them before queueing POISON, so nothing lands behind it or waits on a mailbox nobody drains
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Set when the wrapped agent closed this wrapper from its own callback
+    private volatile boolean closedByWorker = false;
 
     public ParallelAgent(Agent agent) {
+        this(agent, DEFAULT_CAPACITY, BackpressurePolicy.BLOCK);
+    }
+
+    public ParallelAgent(Agent agent, int capacity) {
+        this(agent, capacity, BackpressurePolicy.BLOCK);
+    }
+
+    public ParallelAgent(Agent agent, int capacity, BackpressurePolicy policy) {
+        if (agent == null || policy == null) {
+            throw new IllegalArgumentException("Agent and policy cannot be null");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Mailbox capacity must be positive");
+        }
         this.agent = agent;
+        this.policy = policy;
+        this.mailbox = new ArrayBlockingQueue<>(capacity);
+        this.latest = policy == BackpressurePolicy.CONFLATE ? new ConcurrentHashMap<>() : null;
+        this.worker = new Thread(this::drainLoop, "ParallelAgent-" + agent.getName());
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Wraps an agent that only cares about the latest value of each input,
+     * using {@link BackpressurePolicy#CONFLATE}.
+     */
+    public static ParallelAgent conflating(Agent agent) {
+        return new ParallelAgent(agent, DEFAULT_CAPACITY, BackpressurePolicy.CONFLATE);
     }
 
     @Override
@@ -22,11 +105,193 @@ public class ParallelAgent implements Agent {
 
     @Override
     public void callback(String topic, Message msg) {
-        agent.callback(topic, msg);
+        enqueue(new Envelope(topic, Topic.Subscription.NO_SLOT, msg));
+    }
+
+    @Override
+    public void callback(int slot, Message msg) {
+        enqueue(new Envelope(null, slot, msg));
+    }
+
+    private void enqueue(Envelope envelope) {
+        if (closed) {
+            return;
+        }
+        inFlight.incrementAndGet();
+        try {
+            // Checked again after announcing ourselves; see close()
+            if (closed || (!started && !start())) {
+                return;
+            }
+            offer(envelope);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void offer(Envelope envelope) {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    mailbox.put(envelope);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case DROP_OLDEST:
+                // POISON is only queued once no publisher is in here, so only envelopes are evicted
+                while (!mailbox.offer(envelope)) {
+                    mailbox.poll();
+                }
+                break;
+            case DROP_NEWEST:
+                mailbox.offer(envelope);
+                break;
+            case CONFLATE:
+                if (latest.put(envelope.key(), envelope) == null) {
+                    // Nothing was waiting for this input; tell the worker there is now
+                    try {
+                        mailbox.put(envelope);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                break;
+        }
     }
 
+    /** Starts the worker unless it is running already; false once closed. */
+    private synchronized boolean start() {
+        if (closed) {
+            return false;
+        }
+        if (!started) {
+            worker.start();
+            started = true;
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting messages, lets the worker deliver everything already
+     * queued, waits for it to finish and then closes the wrapped agent.
+     * Messages published concurrently are either delivered or refused, never
+     * queued behind the shutdown. Called from the wrapped agent's own
+     * callback, it returns at once and the worker closes the agent after
+     * draining the mailbox.
+     */
     @Override
     public void close() {
+        boolean running;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            running = started;
+        }
+        if (!running) {
+            agent.close();
+            return;
+        }
+        if (Thread.currentThread() == worker) {
+            closedByWorker = true;
+            return;
+        }
+        try {
+            // Publishers that saw the mailbox open finish first; the worker keeps draining for them
+            while (inFlight.get() > 0) {
+                LockSupport.parkNanos(this, 100_000L);
+            }
+            mailbox.put(POISON);
+            worker.join();
+        } catch (InterruptedException e) {
+            worker.interrupt();
+            Thread.currentThread().interrupt();
+        }
         agent.close();
     }
+
+    /** @return the number of messages waiting in the mailbox. */
+    @Override
+    public int getQueueDepth() {
+        return latest != null ? latest.size() : mailbox.size();
+    }
+
+    @Override
+    public Metrics.Recorder getWorkerMetrics() {
+        return workerMetrics;
+    }
+
+    public BackpressurePolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public Agent getAgent() {
+        return agent;
+    }
+
+    private void drainLoop() {
+        try {
+            while (true) {
+                Envelope envelope;
+                if (closedByWorker) {
+                    // Nobody will queue POISON; stop once the last publisher is done and the mailbox is empty
+                    if (inFlight.get() == 0 && mailbox.isEmpty()) {
+                        agent.close();
+                        return;
+                    }
+                    envelope = mailbox.poll(10, TimeUnit.MILLISECONDS);
+                    if (envelope == null) {
+                        continue;
+                    }
+                } else {
+                    envelope = mailbox.take();
+                }
+                if (envelope == POISON) {
+                    return;
+                }
+                if (latest != null) {
+                    // Deliver whatever is newest for that input by now
+                    envelope = latest.remove(envelope.key());
+                    if (envelope == null) {
+                        continue;
+                    }
+                }
+                long start = Metrics.ENABLED ? workerMetrics.start() : 0;
+                try {
+                    if (envelope.slot >= 0 && agent instanceof IndexedAgent) {
+                        ((IndexedAgent) agent).callback(envelope.slot, envelope.msg);
+                    } else {
+                        agent.callback(envelope.topic, envelope.msg);
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                if (Metrics.ENABLED) {
+                    workerMetrics.end(1, start);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Envelope {
+        final String topic;
+        final int slot;
+        final Message msg;
+
+        Envelope(String topic, int slot, Message msg) {
+            this.topic = topic;
+            this.slot = slot;
+            this.msg = msg;
+        }
+
+        /** Identifies the input the envelope came from. */
+        Object key() {
+            return slot >= 0 ? (Object) slot : topic;
+        }
+    }
 }
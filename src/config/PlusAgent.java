@@ -1,12 +1,17 @@
 package config;
 
-import graph.Agent;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import graph.IndexedAgent;
 import graph.Message;
+import graph.StatefulAgent;
 import graph.Topic;
 import graph.TopicManagerSingleton.TopicManager;
 import graph.TopicManagerSingleton;
 
-public class PlusAgent implements Agent {
+public class PlusAgent implements IndexedAgent, StatefulAgent {
     private final String name;
     private final Topic[] subs;
     private final Topic output;
@@ -14,17 +19,21 @@ public class PlusAgent implements Agent {
     private double y = 0;
 
     public PlusAgent(String[] subs, String[] pubs) {
+        this(TopicManagerSingleton.get(), subs, pubs);
+    }
+
+    /** Creates the agent on the topics of one namespace; see {@link GenericConfig#GenericConfig(TopicManager)}. */
+    public PlusAgent(TopicManager manager, String[] subs, String[] pubs) {
         if (subs.length < 2 || pubs.length < 1) {
             throw new IllegalArgumentException("PlusAgent requires at least 2 subs and 1 pub.");
         }
 
         this.name = "PlusAgent";
-        TopicManager manager = TopicManagerSingleton.get();
         this.subs = new Topic[]{manager.getTopic(subs[0]), manager.getTopic(subs[1])};
         this.output = manager.getTopic(pubs[0]);
 
-        this.subs[0].subscribe(this);
-        this.subs[1].subscribe(this);
+        this.subs[0].subscribe(this, 0);
+        this.subs[1].subscribe(this, 1);
         this.output.addPublisher(this);
     }
 
@@ -41,18 +50,64 @@ public class PlusAgent implements Agent {
 
     @Override
     public void callback(String topic, Message msg) {
+        callback(topic, msg.asDouble);
+    }
+
+    @Override
+    public void callback(String topic, double value) {
         if (topic.equals(subs[0].name)) {
-            x = msg.asDouble;
+            callback(0, value);
         } else if (topic.equals(subs[1].name)) {
-            y = msg.asDouble;
+            callback(1, value);
+        }
+    }
+
+    @Override
+    public void callback(int slot, Message msg) {
+        callback(slot, msg.asDouble);
+    }
+
+    @Override
+    public void callback(int slot, double value) {
+        if (slot == 0) {
+            x = value;
+        } else if (slot == 1) {
+            y = value;
         }
 
         if (!Double.isNaN(x) && !Double.isNaN(y)) {
-            double result = x + y;
-            output.publish(new Message(result));
+            output.publish(x + y);
         }
     }
 
+    @Override
+    public void inputsChanged(Topic.Subscription[] changed, int count) {
+        for (int i = 0; i < count; i++) {
+            Topic topic = changed[i].getTopic();
+            if (topic == subs[0]) {
+                x = topic.getDouble(x);
+            } else if (topic == subs[1]) {
+                y = topic.getDouble(y);
+            }
+        }
+
+        if (!Double.isNaN(x) && !Double.isNaN(y)) {
+            output.publish(x + y);
+        }
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeDouble(x);
+        out.writeDouble(y);
+    }
+
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        x = in.readDouble();
+        y = in.readDouble();
+    }
+
     @Override
     public void close() {
         subs[0].unsubscribe(this);
@@ -0,0 +1,93 @@
+package config;
+
+import java.util.Arrays;
+
+/**
+ * Iterative Tarjan strongly-connected-components over a graph given in
+ * compressed sparse row form: the edges of node {@code v} are
+ * {@code targets[offsets[v] .. offsets[v + 1])}. Runs in O(V+E) with an
+ * explicit stack, so deep graphs cannot overflow the call stack.
+ */
+final class TarjanScc {
+
+    /** Component of each node; components are numbered in reverse topological order. */
+    final int[] componentOf;
+    final int componentCount;
+
+    TarjanScc(int[] offsets, int[] targets) {
+        int n = offsets.length - 1;
+        int[] index = new int[n];
+        int[] low = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int[] callStack = new int[n];
+        int[] nextEdge = new int[n];
+        componentOf = new int[n];
+        Arrays.fill(index, -1);
+
+        int counter = 0;
+        int components = 0;
+        int sp = 0;
+        for (int root = 0; root < n; root++) {
+            if (index[root] != -1) {
+                continue;
+            }
+            int csp = 0;
+            index[root] = low[root] = counter++;
+            stack[sp++] = root;
+            onStack[root] = true;
+            callStack[csp] = root;
+            nextEdge[csp++] = offsets[root];
+
+            while (csp > 0) {
+                int v = callStack[csp - 1];
+                if (nextEdge[csp - 1] < offsets[v + 1]) {
+                    int w = targets[nextEdge[csp - 1]++];
+                    if (index[w] == -1) {
+                        index[w] = low[w] = counter++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        callStack[csp] = w;
+                        nextEdge[csp++] = offsets[w];
+                    } else if (onStack[w] && index[w] < low[v]) {
+                        low[v] = index[w];
+                    }
+                    continue;
+                }
+                // All edges of v explored
+                csp--;
+                if (low[v] == index[v]) {
+                    int w;
+                    do {
+                        w = stack[--sp];
+                        onStack[w] = false;
+                        componentOf[w] = components;
+                    } while (w != v);
+                    components++;
+                }
+                if (csp > 0) {
+                    int parent = callStack[csp - 1];
+                    if (low[v] < low[parent]) {
+                        low[parent] = low[v];
+                    }
+                }
+            }
+        }
+        componentCount = components;
+    }
+
+    /** @return true if some component has more than one node or a node has an edge to itself. */
+    boolean hasCycle(int[] offsets, int[] targets) {
+        if (componentCount < componentOf.length) {
+            return true;
+        }
+        for (int v = 0; v < componentOf.length; v++) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                if (targets[e] == v) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -5,4 +5,39 @@ public interface Agent {
     void reset();
     void callback(String topic, Message msg);
     void close();
+
+    /**
+     * Numeric fast path used by {@link Topic#publish(double)}. Agents that only
+     * care about the value should override this to avoid building a Message;
+     * the default materializes one and goes through the regular callback.
+     */
+    default void callback(String topic, double value) {
+        callback(topic, new Message(value));
+    }
+
+    /**
+     * Batch path used by {@link Topic#publishBatch(double[], int, int)}, with
+     * {@code values[off .. off + len)} in publish order. The array belongs to
+     * the publisher and must not be kept after returning. The default unrolls
+     * the batch into {@link #callback(String, double)}; operators that can
+     * handle a whole batch in one loop should override it.
+     */
+    default void callbackBatch(String topic, double[] values, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            callback(topic, values[i]);
+        }
+    }
+
+    /**
+     * Called by a dispatcher that batches updates, such as an execution plan,
+     * when {@code changed[0 .. count)} all got a new value in the same tick;
+     * each topic already holds its latest value. The array is reused and must
+     * not be kept. The default delivers each input in turn; agents that
+     * combine their inputs should override it to run once.
+     */
+    default void inputsChanged(Topic.Subscription[] changed, int count) {
+        for (int i = 0; i < count; i++) {
+            changed[i].deliverLast();
+        }
+    }
 }
@@ -0,0 +1,16 @@
+package graph;
+
+/**
+ * How a {@link Topic} hands published messages to its subscribers.
+ */
+public enum DeliveryMode {
+    /** Every subscriber's callback runs inline on the publisher's thread (default). */
+    SYNCHRONOUS,
+    /**
+     * Messages are written once into a preallocated ring and each subscriber
+     * consumes them on its own thread at its own pace. Any thread may publish;
+     * publishers are serialized by a lock on the ring, which subscribers never
+     * take.
+     */
+    RING_BUFFER
+}
@@ -0,0 +1,23 @@
+package graph;
+
+/**
+ * An agent told which of its inputs a message came from by a slot number
+ * chosen when it subscribed ({@link Topic#subscribe(Agent, int)}), so it can
+ * dispatch with a switch or an array index instead of comparing topic names.
+ * Subscriptions made without a slot keep using the name-based callbacks.
+ */
+public interface IndexedAgent extends Agent {
+    void callback(int slot, Message msg);
+
+    /** Numeric fast path, like {@link Agent#callback(String, double)}. */
+    default void callback(int slot, double value) {
+        callback(slot, new Message(value));
+    }
+
+    /** Batch path, like {@link Agent#callbackBatch(String, double[], int, int)}. */
+    default void callbackBatch(int slot, double[] values, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            callback(slot, values[i]);
+        }
+    }
+}
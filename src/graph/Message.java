@@ -25,9 +25,16 @@ public class Message {
         this(new String(bytes));
     }
 
-    // Const double
+    // Const double - keeps the primitive instead of re-parsing the text
     public Message(double d) {
-        this(Double.toString(d));
+        this(Double.toString(d), d);
+    }
+
+    private Message(String str, double d) {
+        this.data = str.getBytes();
+        this.asText = str;
+        this.asDouble = d;
+        this.date = new Date();
     }
 
     private static double parseDoubleSafely(String str) {
@@ -0,0 +1,179 @@
+package graph;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the pub/sub core. Topics count what is
+ * published to them and time the fan-out; every subscription counts and
+ * times the callbacks it makes, which gives the per-agent numbers. Counts are
+ * {@link LongAdder}s, so threads publishing or delivering at the same time do
+ * not contend; histogram buckets are plain atomic counters, which the sampling
+ * below keeps from being contended.
+ *
+ * Counts are exact. Reading the clock costs more than a typical callback, so
+ * about one call in {@link #SAMPLE_EVERY}, picked per thread at random, is
+ * timed and the histograms hold that sample. Nothing is allocated for a topic
+ * or subscription until it records something.
+ *
+ * Recording roughly triples the cost of a cheap publish, so it is off unless
+ * the JVM runs with {@code -Dgraph.metrics=true}; the flag is a constant, so
+ * the JIT removes the disabled code.
+ */
+public final class Metrics {
+    public static final boolean ENABLED = Boolean.getBoolean("graph.metrics");
+
+    /** How often a call is timed, a power of two ({@code -Dgraph.metrics.sampleEvery}, default 64). */
+    public static final int SAMPLE_EVERY = Integer.highestOneBit(Math.max(1, Integer.getInteger("graph.metrics.sampleEvery", 64)));
+
+    private Metrics() {
+    }
+
+    /**
+     * A latency histogram from 0 up to about 17s plus one bucket for anything
+     * longer. Like HdrHistogram, each power of two of nanoseconds (and the
+     * range below 256ns) is split into {@value #SUB_BUCKETS} equal
+     * sub-buckets, so a bucket is never wider than 1/32 of its lower bound and
+     * {@link #quantileNanos(double)} is within about 3% of the recorded value.
+     * Bucket {@code i} counts values from {@code upperBoundNanos(i - 1)} up to
+     * {@link #upperBoundNanos(int)}. Each histogram holds about 7 KB of
+     * counters.
+     */
+    public static final class Histogram {
+        private static final int MIN_BITS = 8;
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        // Below 256ns, then one range per power of two up to 2^34ns
+        private static final int RANGES = 27;
+        private static final int BUCKETS = RANGES * SUB_BUCKETS + 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long nanos) {
+            counts.incrementAndGet(bucketOf(Math.max(0, nanos)));
+            sum.add(nanos);
+        }
+
+        private static int bucketOf(long nanos) {
+            // Range 0 is [0, 2^MIN_BITS); range r > 0 is [2^(MIN_BITS + r - 1), 2^(MIN_BITS + r))
+            int range = Math.max(0, (64 - Long.numberOfLeadingZeros(nanos)) - MIN_BITS);
+            if (range >= RANGES) {
+                return BUCKETS - 1;
+            }
+            int shift = range == 0 ? MIN_BITS - SUB_BITS : MIN_BITS + range - 1 - SUB_BITS;
+            return range * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        public static int bucketCount() {
+            return BUCKETS;
+        }
+
+        /** @return the exclusive upper bound of a bucket; the last one is unbounded. */
+        public static long upperBoundNanos(int bucket) {
+            if (bucket == BUCKETS - 1) {
+                return Long.MAX_VALUE;
+            }
+            int range = bucket / SUB_BUCKETS;
+            long sub = bucket % SUB_BUCKETS + 1;
+            if (range == 0) {
+                return sub << (MIN_BITS - SUB_BITS);
+            }
+            long lower = 1L << (MIN_BITS + range - 1);
+            return lower + (sub << (MIN_BITS + range - 1 - SUB_BITS));
+        }
+
+        public long getBucket(int bucket) {
+            return counts.get(bucket);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * @param quantile Between 0 and 1, e.g. 0.99.
+         * @return the upper bound of the bucket holding that quantile, 0 if
+         *         nothing was recorded, or {@link Long#MAX_VALUE} if it fell
+         *         past the last bounded bucket.
+         */
+        public long quantileNanos(double quantile) {
+            if (!(quantile >= 0 && quantile <= 1)) {
+                throw new IllegalArgumentException("Quantile must be between 0 and 1");
+            }
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return upperBoundNanos(i);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        public long getSumNanos() {
+            return sum.sum();
+        }
+    }
+
+    /**
+     * Counts calls (or the values they carry) and times a sample of them:
+     * bracket each call with {@link #start()} and {@link #end(int, long)}.
+     */
+    public static final class Recorder {
+        private static final long NOT_TIMED = Long.MIN_VALUE;
+
+        private final LongAdder count = new LongAdder();
+        private volatile Histogram latency;
+
+        /** @return the start time if this call is in the timed sample, else a marker {@link #end} ignores. */
+        public long start() {
+            // A per-thread draw, so publishers sharing a recorder never write to a shared counter
+            return (ThreadLocalRandom.current().nextInt() & (SAMPLE_EVERY - 1)) == 0 ? System.nanoTime() : NOT_TIMED;
+        }
+
+        /** Counts {@code n} and, if {@code start} came from a timed call, records its latency. */
+        public void end(int n, long start) {
+            count.add(n);
+            if (start == NOT_TIMED) {
+                return;
+            }
+            long nanos = System.nanoTime() - start;
+            Histogram h = latency;
+            if (h == null) {
+                synchronized (this) {
+                    h = latency;
+                    if (h == null) {
+                        h = new Histogram();
+                        latency = h;
+                    }
+                }
+            }
+            h.record(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /** @return the timed sample, or null if no call was timed yet. */
+        public Histogram getLatency() {
+            return latency;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package graph;
+
+/**
+ * An agent that queues what it receives and runs another agent on its own
+ * thread. Its subscriptions only time the hand-off; the wrapped agent's own
+ * callback latency is reported separately.
+ */
+public interface QueueingAgent extends Agent {
+    /** @return the number of messages waiting to be processed. */
+    int getQueueDepth();
+
+    /** @return the wrapped agent's callbacks on the worker thread, with their sampled latency. */
+    Metrics.Recorder getWorkerMetrics();
+
+    /** @return the agent run on the worker thread. */
+    Agent getAgent();
+}
@@ -0,0 +1,197 @@
+package graph;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Multi-consumer ring of message slots used by topics in
+ * {@link DeliveryMode#RING_BUFFER} mode.
+ *
+ * A producer claims the next sequence, stores the message reference in the
+ * preallocated slot and publishes the sequence through {@link #cursor}.
+ * Topics are published to from many threads, so producers are serialized by
+ * the ring's lock; consumers never take it. Every subscriber owns a consumer
+ * thread with its own sequence cursor; a producer only waits when it would
+ * overwrite a slot the slowest consumer has not read yet. Nothing is
+ * allocated per message.
+ *
+ * A consumer with nothing to read spins, then yields, then parks until the
+ * next publish wakes it, so idle subscribers cost no CPU. Before parking it
+ * clears the slots every consumer has read, so an idle topic does not keep
+ * old messages reachable; under steady load up to {@code capacity} consumed
+ * messages stay referenced until the producer overwrites them.
+ */
+final class RingBuffer {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    private final String topicName;
+    private final Message[] slots;
+    private final int mask;
+
+    /** Highest sequence visible to consumers. */
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+    /** Consumers parked waiting for a publish; lets publish skip the wake-up scan when none are. */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    // Producer-side state, guarded by this
+    private long nextSequence = 0;
+    private long cachedGatingSequence = -1;
+    private long clearedSequence = -1;
+
+    RingBuffer(String topicName, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two");
+        }
+        this.topicName = topicName;
+        this.slots = new Message[capacity];
+        this.mask = capacity - 1;
+    }
+
+    synchronized void publish(Message message) {
+        long sequence = nextSequence;
+        long wrapPoint = sequence - slots.length;
+        if (wrapPoint > cachedGatingSequence) {
+            long minSequence;
+            int idle = 0;
+            while (wrapPoint > (minSequence = minimumConsumerSequence(sequence - 1))) {
+                idle = backOff(idle);
+            }
+            cachedGatingSequence = minSequence;
+        }
+        slots[(int) sequence & mask] = message;
+        nextSequence = sequence + 1;
+        cursor.set(sequence);
+        if (waiters.get() > 0) {
+            for (Consumer consumer : consumers) {
+                if (consumer.waiting) {
+                    LockSupport.unpark(consumer.thread);
+                }
+            }
+        }
+    }
+
+    /** Drops the references held by slots that every consumer has already delivered. */
+    synchronized void releaseConsumed() {
+        long consumed = minimumConsumerSequence(nextSequence - 1);
+        // Slots before this were overwritten by later sequences and must be kept
+        long from = Math.max(clearedSequence + 1, nextSequence - slots.length);
+        for (long sequence = from; sequence <= consumed; sequence++) {
+            slots[(int) sequence & mask] = null;
+        }
+        clearedSequence = Math.max(clearedSequence, consumed);
+    }
+
+    void addConsumer(Topic.Subscription subscription) {
+        Consumer consumer = new Consumer(subscription, cursor.get());
+        consumers.add(consumer);
+        consumer.thread.start();
+    }
+
+    void removeConsumer(Agent agent) {
+        for (Consumer consumer : consumers) {
+            if (consumer.agent == agent) {
+                consumers.remove(consumer);
+                consumer.halt();
+            }
+        }
+    }
+
+    void close() {
+        for (Consumer consumer : consumers) {
+            consumer.halt();
+        }
+        consumers.clear();
+    }
+
+    private long minimumConsumerSequence(long fallback) {
+        long min = fallback;
+        for (Consumer consumer : consumers) {
+            min = Math.min(min, consumer.sequence.get());
+        }
+        return min;
+    }
+
+    private static int backOff(int idle) {
+        if (idle < SPIN_TRIES) {
+            // busy spin
+        } else if (idle < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+    private final class Consumer implements Runnable {
+        final Agent agent;
+        final Topic.Subscription subscription;
+        /** Last sequence this consumer has finished delivering. */
+        final AtomicLong sequence;
+        final Thread thread;
+        volatile boolean running = true;
+        volatile boolean waiting = false;
+
+        Consumer(Topic.Subscription subscription, long startSequence) {
+            this.subscription = subscription;
+            this.agent = subscription.getAgent();
+            this.sequence = new AtomicLong(startSequence);
+            this.thread = new Thread(this, "Topic-" + topicName + "-" + agent.getName());
+            this.thread.setDaemon(true);
+        }
+
+        void halt() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            long next = sequence.get() + 1;
+            int idle = 0;
+            while (running) {
+                long available = cursor.get();
+                if (available < next) {
+                    if (idle < SPIN_TRIES + YIELD_TRIES) {
+                        idle = backOff(idle);
+                    } else {
+                        awaitPublish(next);
+                    }
+                    continue;
+                }
+                idle = 0;
+                for (; next <= available && running; next++) {
+                    try {
+                        subscription.deliver(slots[(int) next & mask]);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                sequence.lazySet(next - 1);
+            }
+            // Never gate the producer once detached
+            sequence.set(Long.MAX_VALUE);
+        }
+
+        /** Parks until {@code next} is published or the consumer is halted. */
+        private void awaitPublish(long next) {
+            releaseConsumed();
+            waiting = true;
+            waiters.incrementAndGet();
+            // Re-check after announcing ourselves: a publish either sees the
+            // waiter or happened before this read, never neither
+            if (running && cursor.get() < next) {
+                LockSupport.park(this);
+            }
+            waiters.decrementAndGet();
+            waiting = false;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package graph;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * An agent whose internal state can be checkpointed and restored, so a
+ * restarted graph resumes without re-publishing inputs until that state
+ * converges again. Agents whose output only depends on the current message
+ * need not implement it.
+ */
+public interface StatefulAgent extends Agent {
+    /** Writes the agent's state; {@link #restoreState(DataInput)} must read exactly what this writes. */
+    void saveState(DataOutput out) throws IOException;
+
+    /** Replaces the agent's state with one written by {@link #saveState(DataOutput)}. Nothing is published. */
+    void restoreState(DataInput in) throws IOException;
+}
@@ -1,48 +1,495 @@
 package graph;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Topic {
+    private static final AtomicLongFieldUpdater<Topic> LAST_BITS =
+            AtomicLongFieldUpdater.newUpdater(Topic.class, "lastBits");
+    private static final AtomicReferenceFieldUpdater<Topic, LastMessage> LAST_MESSAGE =
+            AtomicReferenceFieldUpdater.newUpdater(Topic.class, LastMessage.class, "lastMessage");
+
     public final String name;
+    // Index in the owning TopicManager, or -1 for a topic created on its own
+    private final int id;
     private final List<Agent> subs = new CopyOnWriteArrayList<>();
+    // What publish walks: one entry per subscriber, replaced whole on (un)subscribe
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    // Bumped on every (un)subscribe
+    private volatile int subscriptionStamp;
     private final List<Agent> pubs = new CopyOnWriteArrayList<>();
-    private Message lastMessage;
+    // Last published value as Double.doubleToRawLongBits, valid once hasLast is set
+    private volatile long lastBits;
+    private volatile boolean hasLast;
+    // The Message for the last value, if one was published or built; only trusted while its bits match lastBits
+    private volatile LastMessage lastMessage;
+    // null while the topic delivers synchronously
+    private volatile RingBuffer ring;
+    // Takes precedence over both delivery modes while set
+    private volatile TopicDispatcher dispatcher;
+    // Set by the TopicManager that owns this topic
+    private volatile TopologyListener topologyListener;
+    // Created on the first publish while metrics are enabled
+    private volatile Metrics.Recorder metrics;
+    // null unless persistence was enabled for this topic
+    private volatile TopicLog log;
 
     public Topic(String name) {
+        this(name, -1);
+    }
+
+    Topic(String name, int id) {
         if (name == null || name.isEmpty()) {
             throw new IllegalArgumentException("Topic name cannot be null or empty");
         }
         this.name = name;
+        this.id = id;
+    }
+
+    /**
+     * @return this topic's id in its TopicManager, usable with
+     *         {@link TopicManagerSingleton.TopicManager#getTopic(int)}; -1 if
+     *         the topic was not created by a manager.
+     */
+    public int getId() {
+        return id;
     }
 
     public void subscribe(Agent agent) {
+        subscribe(agent, Subscription.NO_SLOT);
+    }
+
+    /**
+     * Subscribes an agent under a slot number. If the agent is an
+     * {@link IndexedAgent}, messages from this topic arrive through
+     * {@link IndexedAgent#callback(int, Message)} with that slot.
+     *
+     * @param slot A non-negative slot, or -1 for the name-based callbacks.
+     */
+    public synchronized void subscribe(Agent agent, int slot) {
+        if (slot < Subscription.NO_SLOT) {
+            throw new IllegalArgumentException("Slot must be non-negative, or -1 for none");
+        }
         if (!subs.contains(agent)) {
+            Subscription subscription = new Subscription(this, agent, slot);
             subs.add(agent);
+            Subscription[] current = subscriptions;
+            Subscription[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+            subscriptions = updated;
+            subscriptionStamp++;
+            if (ring != null) {
+                ring.addConsumer(subscription);
+            }
+            TopologyListener l = topologyListener;
+            if (l != null) {
+                l.subscribed(this, agent);
+            }
         }
     }
 
-    public void unsubscribe(Agent agent) {
-        subs.remove(agent);
+    public synchronized void unsubscribe(Agent agent) {
+        if (subs.remove(agent)) {
+            Subscription[] current = subscriptions;
+            Subscription[] updated = new Subscription[current.length - 1];
+            int i = 0;
+            for (Subscription s : current) {
+                if (s.agent != agent) {
+                    updated[i++] = s;
+                }
+            }
+            subscriptions = updated;
+            subscriptionStamp++;
+            if (ring != null) {
+                ring.removeConsumer(agent);
+            }
+            TopologyListener l = topologyListener;
+            if (l != null) {
+                l.unsubscribed(this, agent);
+            }
+        }
     }
 
     public void publish(Message message) {
-        lastMessage = message;
-        for (Agent agent : subs) {
-            agent.callback(this.name, message);
+        Metrics.Recorder m = Metrics.ENABLED ? metrics() : null;
+        long start = m != null ? m.start() : 0;
+        TopicLog l = log;
+        if (l != null) {
+            append(l, message.data, message.date.getTime());
+        }
+        setLast(message);
+        TopicDispatcher d = dispatcher;
+        RingBuffer r = ring;
+        if (d != null) {
+            d.published(this);
+        } else if (r != null) {
+            r.publish(message);
+        } else {
+            for (Subscription s : subscriptions) {
+                s.deliver(message);
+            }
+        }
+        if (m != null) {
+            m.end(1, start);
+        }
+    }
+
+    /**
+     * Publishes a number without allocating a Message for synchronous
+     * subscribers that override {@link Agent#callback(String, double)}.
+     * The topic's Message is only built if someone asks for it.
+     */
+    public void publish(double value) {
+        RingBuffer r = ring;
+        if ((r != null && dispatcher == null) || log != null) {
+            publish(new Message(value));
+            return;
+        }
+        Metrics.Recorder m = Metrics.ENABLED ? metrics() : null;
+        long start = m != null ? m.start() : 0;
+        setLast(value);
+        TopicDispatcher d = dispatcher;
+        if (d != null) {
+            d.published(this);
+        } else {
+            for (Subscription s : subscriptions) {
+                s.deliver(value);
+            }
+        }
+        if (m != null) {
+            m.end(1, start);
+        }
+    }
+
+    public void publishBatch(double[] values) {
+        publishBatch(values, 0, values.length);
+    }
+
+    /**
+     * Publishes {@code values[off .. off + len)} as one batch. Synchronous
+     * subscribers get a single {@link Agent#callbackBatch(String, double[], int, int)}
+     * (or its slot variant) and see the topic's value as the batch's last
+     * element throughout. A dispatcher is told once, so like any repeated
+     * publish within a tick only the last value propagates. Ring-buffer topics
+     * publish the elements one by one.
+     */
+    public void publishBatch(double[] values, int off, int len) {
+        checkRange(values.length, off, len);
+        if (len == 0) {
+            return;
+        }
+        RingBuffer r = ring;
+        if (r != null && dispatcher == null) {
+            for (int i = off; i < off + len; i++) {
+                publish(new Message(values[i]));
+            }
+            return;
+        }
+        Metrics.Recorder m = Metrics.ENABLED ? metrics() : null;
+        long start = m != null ? m.start() : 0;
+        TopicLog l = log;
+        if (l != null) {
+            long now = System.currentTimeMillis();
+            for (int i = off; i < off + len; i++) {
+                append(l, Double.toString(values[i]).getBytes(), now);
+            }
+        }
+        setLast(values[off + len - 1]);
+        TopicDispatcher d = dispatcher;
+        if (d != null) {
+            d.published(this);
+        } else {
+            for (Subscription s : subscriptions) {
+                s.deliverBatch(values, off, len);
+            }
+        }
+        if (m != null) {
+            m.end(len, start);
+        }
+    }
+
+    public void publishBatch(Message[] messages) {
+        publishBatch(messages, 0, messages.length);
+    }
+
+    /**
+     * Publishes {@code messages[off .. off + len)} in order. Each subscriber
+     * receives the whole run before the next one does; otherwise this behaves
+     * like {@link #publishBatch(double[], int, int)}.
+     */
+    public void publishBatch(Message[] messages, int off, int len) {
+        checkRange(messages.length, off, len);
+        if (len == 0) {
+            return;
         }
+        Metrics.Recorder m = Metrics.ENABLED ? metrics() : null;
+        long start = m != null ? m.start() : 0;
+        TopicLog l = log;
+        if (l != null) {
+            for (int i = off; i < off + len; i++) {
+                append(l, messages[i].data, messages[i].date.getTime());
+            }
+        }
+        setLast(messages[off + len - 1]);
+        TopicDispatcher d = dispatcher;
+        RingBuffer r = ring;
+        if (d != null) {
+            d.published(this);
+        } else if (r != null) {
+            for (int i = off; i < off + len; i++) {
+                r.publish(messages[i]);
+            }
+        } else {
+            for (Subscription s : subscriptions) {
+                for (int i = off; i < off + len; i++) {
+                    s.deliver(messages[i]);
+                }
+            }
+        }
+        if (m != null) {
+            m.end(len, start);
+        }
+    }
+
+    private static void append(TopicLog l, byte[] data, long timestamp) {
+        try {
+            l.append(data, timestamp);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not append to the topic log", e);
+        }
+    }
+
+    /**
+     * Sets the last value without delivering it or logging it, for restoring
+     * a graph whose agents get their state back by other means.
+     */
+    public void restoreLast(Message message) {
+        if (message == null) {
+            throw new IllegalArgumentException("Message cannot be null");
+        }
+        setLast(message);
+    }
+
+    public TopicLog getLog() {
+        return log;
+    }
+
+    /**
+     * Makes every publish append to a durable log before it is delivered;
+     * null stops logging (the log is not closed). A topic that has no value
+     * yet takes the log's last record as its current value, so a restarted
+     * graph resumes where it stopped.
+     */
+    public void setLog(TopicLog log) {
+        if (log != null && !hasLast) {
+            try {
+                Message last = log.readLast();
+                if (last != null) {
+                    setLast(last);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read the topic log", e);
+            }
+        }
+        this.log = log;
+    }
+
+    /**
+     * Delivers the logged messages from {@code fromOffset} on to one agent,
+     * under its slot if it is subscribed, so a late subscriber can catch up.
+     *
+     * @return the offset to continue from.
+     * @throws IllegalStateException If the topic has no log.
+     */
+    public long replay(Agent agent, long fromOffset) {
+        TopicLog l = log;
+        if (l == null) {
+            throw new IllegalStateException("Topic " + name + " has no log to replay");
+        }
+        Subscription target = new Subscription(this, agent, slotOf(agent));
+        try {
+            return l.replay(fromOffset, (offset, timestamp, message) -> target.deliver(message));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the topic log", e);
+        }
+    }
+
+    private Metrics.Recorder metrics() {
+        Metrics.Recorder m = metrics;
+        if (m == null) {
+            synchronized (this) {
+                m = metrics;
+                if (m == null) {
+                    m = new Metrics.Recorder();
+                    metrics = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @return the values published to this topic, with a timed sample of how
+     *         long each publish took to reach all subscribers; null if nothing
+     *         was published yet or metrics are off.
+     */
+    public Metrics.Recorder getMetrics() {
+        return metrics;
     }
-    public void addPublisher(Agent a){
+
+    private void setLast(Message message) {
+        long bits = Double.doubleToRawLongBits(message.asDouble);
+        lastMessage = new LastMessage(bits, message);
+        storeLast(bits);
+    }
+
+    private void setLast(double value) {
+        // A Message left from an earlier publish no longer matches; skip the store if there is none
+        if (lastMessage != null) {
+            lastMessage = null;
+        }
+        storeLast(Double.doubleToRawLongBits(value));
+    }
+
+    private void storeLast(long bits) {
+        // An ordered store is enough for a last-value register and avoids a full fence per publish
+        LAST_BITS.lazySet(this, bits);
+        if (!hasLast) {
+            hasLast = true;
+        }
+    }
+
+    private static void checkRange(int length, int off, int len) {
+        if (off < 0 || len < 0 || off > length - len) {
+            throw new IllegalArgumentException("Batch range [" + off + ", " + off + "+" + len
+                    + ") is outside an array of length " + length);
+        }
+    }
+
+    /**
+     * Delivers the last published value to one agent, as a Message if one was
+     * published and through {@link Agent#callback(String, double)} otherwise.
+     * A subscriber gets it under its slot.
+     */
+    public void deliverTo(Agent agent) {
+        for (Subscription s : subscriptions) {
+            if (s.agent == agent) {
+                s.deliverLast();
+                return;
+            }
+        }
+        new Subscription(this, agent, Subscription.NO_SLOT).deliverLast();
+    }
+
+    /** @return the slot the agent subscribed with, or -1. */
+    public int slotOf(Agent agent) {
+        for (Subscription s : subscriptions) {
+            if (s.agent == agent) {
+                return s.slot;
+            }
+        }
+        return Subscription.NO_SLOT;
+    }
+
+    /**
+     * @return a number that changes whenever an agent subscribes or
+     *         unsubscribes, so a caller can tell whether a copy of
+     *         {@link #getSubscriptions()} is still current.
+     */
+    public int getSubscriptionStamp() {
+        return subscriptionStamp;
+    }
+
+    /** @return the current subscriptions, in subscription order. */
+    public List<Subscription> getSubscriptions() {
+        return Collections.unmodifiableList(Arrays.asList(subscriptions));
+    }
+
+    public TopicDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Routes this topic's publishes through a dispatcher instead of delivering
+     * them directly; null restores the topic's delivery mode.
+     */
+    public void setDispatcher(TopicDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    public DeliveryMode getDeliveryMode() {
+        return ring == null ? DeliveryMode.SYNCHRONOUS : DeliveryMode.RING_BUFFER;
+    }
+
+    // Switching modes is done through TopicManager; current subscribers move to the new mode
+    synchronized void setDeliveryMode(DeliveryMode mode) {
+        if (mode == getDeliveryMode()) {
+            return;
+        }
+        if (mode == DeliveryMode.RING_BUFFER) {
+            RingBuffer r = new RingBuffer(name, RingBuffer.DEFAULT_CAPACITY);
+            for (Subscription s : subscriptions) {
+                r.addConsumer(s);
+            }
+            ring = r;
+        } else {
+            RingBuffer r = ring;
+            ring = null;
+            r.close();
+        }
+    }
+
+    public synchronized void addPublisher(Agent a){
         if (!pubs.contains(a)) {
             pubs.add(a);
+            TopologyListener l = topologyListener;
+            if (l != null) {
+                l.publisherAdded(this, a);
+            }
         }
     }
 
-    public void removePublisher(Agent a){
-        pubs.remove(a);
+    public synchronized void removePublisher(Agent a){
+        if (pubs.remove(a)) {
+            TopologyListener l = topologyListener;
+            if (l != null) {
+                l.publisherRemoved(this, a);
+            }
+        }
+    }
+
+    void setTopologyListener(TopologyListener listener) {
+        this.topologyListener = listener;
     }
     public Message getMsg() {
-        return lastMessage;
+        if (!hasLast) {
+            return null;
+        }
+        while (true) {
+            LastMessage cached = lastMessage;
+            long bits = lastBits;
+            if (cached != null && cached.bits == bits) {
+                return cached.message;
+            }
+            // Cache the Message unless another publish or reader got there first; a stale one fails the bits check
+            Message m = new Message(Double.longBitsToDouble(bits));
+            if (LAST_MESSAGE.compareAndSet(this, cached, new LastMessage(bits, m))) {
+                return m;
+            }
+        }
+    }
+
+    /**
+     * @return the last published value, or {@code defaultValue} if nothing was published yet.
+     */
+    public double getDouble(double defaultValue) {
+        return hasLast ? Double.longBitsToDouble(lastBits) : defaultValue;
     }
     public List<Agent> getSubs() {
         return subs;
@@ -50,4 +497,136 @@ public class Topic {
     public List<Agent> getPubs() {
         return pubs;
     }
+
+    /** One agent's subscription to a topic, with the slot it subscribed under. */
+    public static final class Subscription {
+        public static final int NO_SLOT = -1;
+
+        private final Topic topic;
+        private final Agent agent;
+        private final int slot;
+        // Set when messages go through the slot callbacks
+        private final IndexedAgent indexed;
+        // Created on the first callback while metrics are enabled
+        private volatile Metrics.Recorder metrics;
+
+        Subscription(Topic topic, Agent agent, int slot) {
+            this.topic = topic;
+            this.agent = agent;
+            this.slot = slot;
+            this.indexed = slot != NO_SLOT && agent instanceof IndexedAgent ? (IndexedAgent) agent : null;
+        }
+
+        public Topic getTopic() {
+            return topic;
+        }
+
+        public Agent getAgent() {
+            return agent;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public void deliver(Message message) {
+            if (Tracer.ENABLED) {
+                Tracer.hop(topic.name, agent.getName(), message.asDouble);
+            }
+            Metrics.Recorder m = Metrics.ENABLED ? metrics() : null;
+            long start = m != null ? m.start() : 0;
+            if (indexed != null) {
+                indexed.callback(slot, message);
+            } else {
+                agent.callback(topic.name, message);
+            }
+            if (m != null) {
+                m.end(1, start);
+            }
+        }
+
+        public void deliver(double value) {
+            if (Tracer.ENABLED) {
+                Tracer.hop(topic.name, agent.getName(), value);
+            }
+            Metrics.Recorder m = Metrics.ENABLED ? metrics() : null;
+            long start = m != null ? m.start() : 0;
+            if (indexed != null) {
+                indexed.callback(slot, value);
+            } else {
+                agent.callback(topic.name, value);
+            }
+            if (m != null) {
+                m.end(1, start);
+            }
+        }
+
+        /** A batch counts as one callback. */
+        public void deliverBatch(double[] values, int off, int len) {
+            if (Tracer.ENABLED) {
+                for (int i = off; i < off + len; i++) {
+                    Tracer.hop(topic.name, agent.getName(), values[i]);
+                }
+            }
+            Metrics.Recorder m = Metrics.ENABLED ? metrics() : null;
+            long start = m != null ? m.start() : 0;
+            if (indexed != null) {
+                indexed.callbackBatch(slot, values, off, len);
+            } else {
+                agent.callbackBatch(topic.name, values, off, len);
+            }
+            if (m != null) {
+                m.end(1, start);
+            }
+        }
+
+        private Metrics.Recorder metrics() {
+            Metrics.Recorder m = metrics;
+            if (m == null) {
+                synchronized (this) {
+                    m = metrics;
+                    if (m == null) {
+                        m = new Metrics.Recorder();
+                        metrics = m;
+                    }
+                }
+            }
+            return m;
+        }
+
+        /**
+         * @return the callbacks made through this subscription, with a timed
+         *         sample of their latency including anything the agent
+         *         published synchronously; null if none was made yet or
+         *         metrics are off.
+         */
+        public Metrics.Recorder getMetrics() {
+            return metrics;
+        }
+
+        /** Delivers the topic's last published value, if it has one. */
+        public void deliverLast() {
+            if (!topic.hasLast) {
+                return;
+            }
+            LastMessage cached = topic.lastMessage;
+            long bits = topic.lastBits;
+            if (cached != null && cached.bits == bits) {
+                deliver(cached.message);
+            } else {
+                deliver(Double.longBitsToDouble(bits));
+            }
+        }
+    }
+
+    /** A Message and the value bits it stands for, so readers can tell whether it is still current. */
+    private static final class LastMessage {
+        final long bits;
+        final Message message;
+
+        LastMessage(long bits, Message message) {
+            this.bits = bits;
+            this.message = message;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,11 @@
+package graph;
+
+/**
+ * Takes over delivery for a topic. While a dispatcher is installed,
+ * {@link Topic#publish(Message)} and {@link Topic#publish(double)} only record
+ * the value and notify the dispatcher, which decides when each subscriber
+ * sees it through {@link Topic#deliverTo(Agent)}.
+ */
+public interface TopicDispatcher {
+    void published(Topic topic);
+}
@@ -0,0 +1,445 @@
+package graph;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A durable, append-only log of the messages published to one topic; see
+ * {@link Topic#setLog(TopicLog)}.
+ *
+ * The log is a directory of fixed-size, memory-mapped segment files, each
+ * named after the offset of its first record. A record is
+ * {@code [int length][long timestamp][payload]}, where the length covers the
+ * timestamp and payload and a zero length marks the end of the data. Appends
+ * copy the payload straight into the mapped segment, so there is no write
+ * call per record, and the OS writes pages back according to the
+ * {@link FsyncPolicy}. Every {@value #INDEX_INTERVAL_BYTES} bytes or so the
+ * segment's {@code .index} file gets an (offset, position) entry, so a replay
+ * seeks close to its start offset and scans from there.
+ *
+ * Offsets count records from 0 across all segments. Appends are serialized;
+ * replays may run concurrently with them and see what was appended before
+ * they started.
+ */
+public final class TopicLog implements Closeable {
+
+    /** When appended records are forced to disk. */
+    public enum FsyncPolicy {
+        /** Leave it to the OS; records survive a process crash but not a power loss. */
+        NEVER,
+        /** Force after every record. */
+        ALWAYS,
+        /** Force once enough records or enough time have accumulated; see {@link #setFsyncBatch(int, long)}. */
+        BATCH
+    }
+
+    /** Receives replayed records. */
+    public interface RecordHandler {
+        void record(long offset, long timestamp, Message message);
+    }
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+    public static final int INDEX_INTERVAL_BYTES = 4096;
+
+    private static final int LENGTH_BYTES = 4;
+    private static final int TIMESTAMP_BYTES = 8;
+    private static final int INDEX_ENTRY_BYTES = 8;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+
+    private final Path dir;
+    private final int segmentBytes;
+    // Oldest first; the last one is the active segment
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextOffset;
+    private boolean closed;
+
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.BATCH;
+    private int fsyncRecords = 1000;
+    private long fsyncMillis = 1000;
+    private int unsynced;
+    private long lastSync = System.currentTimeMillis();
+
+    public TopicLog(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the log in {@code dir}, creating it if needed, and recovers the
+     * end of the last segment.
+     *
+     * @param segmentBytes The size of each segment file; the largest record
+     *                     that fits is 12 bytes smaller.
+     */
+    public TopicLog(Path dir, int segmentBytes) throws IOException {
+        if (segmentBytes < INDEX_INTERVAL_BYTES) {
+            throw new IllegalArgumentException("Segments must be at least " + INDEX_INTERVAL_BYTES + " bytes");
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+            }
+        }
+        bases.sort(null);
+        for (int i = 0; i < bases.size(); i++) {
+            Segment segment = new Segment(bases.get(i));
+            segment.loadIndex();
+            if (i + 1 < bases.size()) {
+                segment.end = bases.get(i + 1);
+            } else {
+                segment.map();
+                segment.recover();
+            }
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            Segment segment = new Segment(0);
+            segment.map();
+            segments.add(segment);
+        }
+        nextOffset = active().end;
+    }
+
+    public synchronized void setFsyncPolicy(FsyncPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Policy cannot be null");
+        }
+        this.fsyncPolicy = policy;
+    }
+
+    /** For {@link FsyncPolicy#BATCH}: force after this many records or this much time, whichever comes first. */
+    public synchronized void setFsyncBatch(int records, long millis) {
+        if (records < 1 || millis < 0) {
+            throw new IllegalArgumentException("Batch must be at least one record and a non-negative time");
+        }
+        this.fsyncRecords = records;
+        this.fsyncMillis = millis;
+    }
+
+    /** Appends a message, stamped with its creation time. */
+    public long append(Message message) throws IOException {
+        return append(message.data, message.date.getTime());
+    }
+
+    /**
+     * Appends one record.
+     *
+     * @return the record's offset.
+     * @throws IllegalArgumentException If the record is larger than a segment.
+     */
+    public synchronized long append(byte[] data, long timestamp) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Log is closed");
+        }
+        int recordBytes = LENGTH_BYTES + TIMESTAMP_BYTES + data.length;
+        if (recordBytes > segmentBytes) {
+            throw new IllegalArgumentException("Record of " + data.length + " bytes does not fit a segment");
+        }
+        Segment segment = active();
+        if (segment.size + recordBytes > segmentBytes) {
+            segment = roll();
+        }
+        if (segment.size - segment.lastIndexed >= INDEX_INTERVAL_BYTES) {
+            segment.addIndex((int) (nextOffset - segment.base), segment.size);
+        }
+
+        MappedByteBuffer log = segment.log;
+        int position = segment.size;
+        log.putLong(position + LENGTH_BYTES, timestamp);
+        log.position(position + LENGTH_BYTES + TIMESTAMP_BYTES);
+        log.put(data);
+        // Length last: a record whose length never made it reads as the end of the log
+        log.putInt(position, TIMESTAMP_BYTES + data.length);
+        segment.size += recordBytes;
+        segment.end++;
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            segment.force();
+        } else if (fsyncPolicy == FsyncPolicy.BATCH
+                && (++unsynced >= fsyncRecords || System.currentTimeMillis() - lastSync >= fsyncMillis)) {
+            flush();
+        }
+        return nextOffset++;
+    }
+
+    /** Forces everything appended so far to disk. */
+    public synchronized void flush() {
+        if (!closed) {
+            active().force();
+        }
+        unsynced = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    /** @return the offset of the oldest record kept. */
+    public synchronized long getStartOffset() {
+        return segments.get(0).base;
+    }
+
+    /** @return the offset the next record will get. */
+    public synchronized long getEndOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Hands the records from {@code fromOffset} up to the current end to a
+     * handler, oldest first. Offsets before the start of the log start at its
+     * first record.
+     *
+     * @return the offset after the last record replayed, to resume from.
+     */
+    public long replay(long fromOffset, RecordHandler handler) throws IOException {
+        Segment[] snapshot;
+        long[] ends;
+        int[][] indexOffsets;
+        int[][] indexPositions;
+        int[] indexCounts;
+        ByteBuffer activeView;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Log is closed");
+            }
+            snapshot = segments.toArray(new Segment[0]);
+            ends = new long[snapshot.length];
+            indexOffsets = new int[snapshot.length][];
+            indexPositions = new int[snapshot.length][];
+            indexCounts = new int[snapshot.length];
+            for (int i = 0; i < snapshot.length; i++) {
+                // Arrays are only ever replaced, and entries below the count never change
+                ends[i] = snapshot[i].end;
+                indexOffsets[i] = snapshot[i].indexOffsets;
+                indexPositions[i] = snapshot[i].indexPositions;
+                indexCounts[i] = snapshot[i].indexCount;
+            }
+            activeView = active().log.duplicate();
+        }
+
+        long offset = Math.max(fromOffset, snapshot[0].base);
+        for (int i = 0; i < snapshot.length; i++) {
+            Segment segment = snapshot[i];
+            if (offset >= ends[i]) {
+                continue;
+            }
+            ByteBuffer view = i == snapshot.length - 1 ? activeView : segment.mapReadOnly();
+            int position = seek(view, segment.base, offset, indexOffsets[i], indexPositions[i], indexCounts[i]);
+            while (offset < ends[i]) {
+                int length = view.getInt(position);
+                long timestamp = view.getLong(position + LENGTH_BYTES);
+                byte[] data = new byte[length - TIMESTAMP_BYTES];
+                view.position(position + LENGTH_BYTES + TIMESTAMP_BYTES);
+                view.get(data);
+                handler.record(offset, timestamp, new Message(data));
+                position += LENGTH_BYTES + length;
+                offset++;
+            }
+        }
+        return offset;
+    }
+
+    /** @return the last record, or null if the log is empty. */
+    public Message readLast() throws IOException {
+        long end = getEndOffset();
+        if (end == getStartOffset()) {
+            return null;
+        }
+        Message[] last = new Message[1];
+        replay(end - 1, (offset, timestamp, message) -> last[0] = message);
+        return last[0];
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            active().force();
+        }
+        closed = true;
+        active().unmap();
+    }
+
+    /** @return the position of the record at {@code offset}, scanning from the closest index entry before it. */
+    private static int seek(ByteBuffer view, long base, long offset, int[] indexOffsets, int[] indexPositions, int count) {
+        int found = Arrays.binarySearch(indexOffsets, 0, count, (int) (offset - base));
+        int entry = found >= 0 ? found : -found - 2;
+        int position = entry >= 0 ? indexPositions[entry] : 0;
+        long current = base + (entry >= 0 ? indexOffsets[entry] : 0);
+        while (current < offset) {
+            position += LENGTH_BYTES + view.getInt(position);
+            current++;
+        }
+        return position;
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private Segment roll() throws IOException {
+        Segment previous = active();
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            previous.force();
+            unsynced = 0;
+            lastSync = System.currentTimeMillis();
+        }
+        previous.unmap();
+        Segment segment = new Segment(nextOffset);
+        segment.map();
+        segments.add(segment);
+        return segment;
+    }
+
+    private int indexCapacity() {
+        return segmentBytes / INDEX_INTERVAL_BYTES + 1;
+    }
+
+    /** One segment file and its index. Fields are guarded by the log's lock, except during replay. */
+    private final class Segment {
+        final long base;
+        final Path logPath;
+        final Path indexPath;
+        // Offset after the last record
+        long end;
+        // Bytes used; only tracked for the active segment
+        int size;
+        int lastIndexed = -INDEX_INTERVAL_BYTES;
+        // Sparse index: offsets relative to base, and their positions
+        int[] indexOffsets = new int[16];
+        int[] indexPositions = new int[16];
+        int indexCount;
+        // Mapped only while the segment is active
+        MappedByteBuffer log;
+        MappedByteBuffer index;
+
+        Segment(long base) {
+            this.base = base;
+            this.end = base;
+            String name = String.format("%020d", base);
+            this.logPath = dir.resolve(name + LOG_SUFFIX);
+            this.indexPath = dir.resolve(name + INDEX_SUFFIX);
+        }
+
+        void map() throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(logPath.toFile(), "rw")) {
+                file.setLength(segmentBytes);
+                log = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+            try (RandomAccessFile file = new RandomAccessFile(indexPath.toFile(), "rw")) {
+                file.setLength((long) indexCapacity() * INDEX_ENTRY_BYTES);
+                index = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) indexCapacity() * INDEX_ENTRY_BYTES);
+            }
+        }
+
+        ByteBuffer mapReadOnly() throws IOException {
+            try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        void unmap() {
+            // The mapping itself goes away with the buffer once nothing references it
+            log = null;
+            index = null;
+        }
+
+        void force() {
+            log.force();
+            index.force();
+        }
+
+        void loadIndex() throws IOException {
+            if (!Files.exists(indexPath)) {
+                return;
+            }
+            ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            while (entries.remaining() >= INDEX_ENTRY_BYTES) {
+                int offset = entries.getInt();
+                int position = entries.getInt();
+                // Entries grow strictly; the first one is always (0, 0), so zeros after it are unused space
+                if (indexCount > 0 && position <= indexPositions[indexCount - 1]) {
+                    break;
+                }
+                remember(offset, position);
+            }
+        }
+
+        /** Finds the end of the active segment by scanning from its last index entry. */
+        void recover() {
+            int position = indexCount > 0 ? indexPositions[indexCount - 1] : 0;
+            long offset = base + (indexCount > 0 ? indexOffsets[indexCount - 1] : 0);
+            while (position + LENGTH_BYTES <= segmentBytes) {
+                int length = log.getInt(position);
+                if (length < TIMESTAMP_BYTES || position + LENGTH_BYTES + length > segmentBytes) {
+                    break;
+                }
+                position += LENGTH_BYTES + length;
+                offset++;
+            }
+            size = position;
+            end = offset;
+            lastIndexed = indexCount > 0 ? indexPositions[indexCount - 1] : -INDEX_INTERVAL_BYTES;
+            clearFrom(position);
+        }
+
+        /**
+         * Zeroes whatever lies past the end of the data. An append torn by a
+         * crash can leave its payload without a length; once a shorter record
+         * is written over its start, the next recovery would otherwise scan on
+         * into those stale bytes. Only non-zero words are written, so pages
+         * that were never touched stay unallocated.
+         */
+        private void clearFrom(int position) {
+            int p = position;
+            for (; p < segmentBytes && (p & 7) != 0; p++) {
+                if (log.get(p) != 0) {
+                    log.put(p, (byte) 0);
+                }
+            }
+            for (; p + 8 <= segmentBytes; p += 8) {
+                if (log.getLong(p) != 0) {
+                    log.putLong(p, 0);
+                }
+            }
+            for (; p < segmentBytes; p++) {
+                if (log.get(p) != 0) {
+                    log.put(p, (byte) 0);
+                }
+            }
+        }
+
+        void addIndex(int offset, int position) {
+            index.putInt(indexCount * INDEX_ENTRY_BYTES, offset);
+            index.putInt(indexCount * INDEX_ENTRY_BYTES + 4, position);
+            remember(offset, position);
+            lastIndexed = position;
+        }
+
+        private void remember(int offset, int position) {
+            if (indexCount == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexOffsets[indexCount] = offset;
+            indexPositions[indexCount] = position;
+            indexCount++;
+        }
+    }
+}
@@ -1,13 +1,184 @@
 package graph;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class TopicManagerSingleton {
+    public static final String DEFAULT_NAMESPACE = "default";
+
+    private static final ConcurrentHashMap<String, TopicManager> namespaces = new ConcurrentHashMap<>();
+
+    /**
+     * A registry of topics. {@link TopicManagerSingleton#get()} is the shared
+     * default one; independent graphs in one process can each use their own,
+     * either from {@link TopicManagerSingleton#namespace(String)} or created
+     * directly. Either way the manager is registered under its namespace
+     * until {@link TopicManagerSingleton#removeNamespace(String)}, and names
+     * are unique.
+     *
+     * Every topic gets a small int id when it is created, so hot paths can
+     * keep the id and look the topic up by array index instead of by name.
+     * Ids start at 0 and are never reused: numbering continues after
+     * {@link #clear()}, so an id kept from before it resolves to null instead
+     * of to an unrelated topic.
+     */
     public static class TopicManager {
+        private final String namespace;
         private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>();
+        private final List<TopologyListener> listeners = new CopyOnWriteArrayList<>();
+        // Topics by id - firstId; only replaced and filled under idLock, read without locking
+        private volatile Topic[] byId = new Topic[64];
+        // The id of byId[0], i.e. the first id handed out since the last clear()
+        private volatile int firstId = 0;
+        private int nextId = 0;
+        private final Object idLock = new Object();
+        // Creations of different topics share the read side; clear() takes the write side
+        private final ReadWriteLock clearLock = new ReentrantReadWriteLock();
+
+        /**
+         * Creates and registers the manager of a new namespace.
+         *
+         * @throws IllegalArgumentException If a manager with this namespace is already registered.
+         */
+        public TopicManager(String namespace) {
+            this(namespace, false);
+            if (namespaces.putIfAbsent(namespace, this) != null) {
+                throw new IllegalArgumentException("Namespace " + namespace + " already exists");
+            }
+        }
+
+        // For namespace(), which registers the manager itself
+        private TopicManager(String namespace, boolean registered) {
+            if (namespace == null || namespace.isEmpty()) {
+                throw new IllegalArgumentException("Namespace cannot be null or empty");
+            }
+            this.namespace = namespace;
+        }
+
+        // Every topic reports to this, and it fans out to the registered listeners
+        private final TopologyListener events = new TopologyListener() {
+            @Override
+            public void topicCreated(Topic topic) {
+                for (TopologyListener l : listeners) {
+                    l.topicCreated(topic);
+                }
+            }
+
+            @Override
+            public void subscribed(Topic topic, Agent agent) {
+                for (TopologyListener l : listeners) {
+                    l.subscribed(topic, agent);
+                }
+            }
+
+            @Override
+            public void unsubscribed(Topic topic, Agent agent) {
+                for (TopologyListener l : listeners) {
+                    l.unsubscribed(topic, agent);
+                }
+            }
 
+            @Override
+            public void publisherAdded(Topic topic, Agent agent) {
+                for (TopologyListener l : listeners) {
+                    l.publisherAdded(topic, agent);
+                }
+            }
+
+            @Override
+            public void publisherRemoved(Topic topic, Agent agent) {
+                for (TopologyListener l : listeners) {
+                    l.publisherRemoved(topic, agent);
+                }
+            }
+
+            @Override
+            public void topicsCleared() {
+                for (TopologyListener l : listeners) {
+                    l.topicsCleared();
+                }
+            }
+        };
+
+        public String getNamespace() {
+            return namespace;
+        }
+
+        /** Gets the topic with this name, creating it if needed. */
         public Topic getTopic(String name) {
-            return topics.computeIfAbsent(name, Topic::new);
+            Topic topic = topics.get(name);
+            if (topic != null) {
+                return topic;
+            }
+            Topic[] created = new Topic[1];
+            clearLock.readLock().lock();
+            try {
+                // Only callers creating the same name wait for each other
+                topic = topics.computeIfAbsent(name, n -> created[0] = register(n));
+            } finally {
+                clearLock.readLock().unlock();
+            }
+            if (created[0] != null) {
+                // Announced outside the locks so listeners may call back into the manager
+                events.topicCreated(created[0]);
+            }
+            return topic;
+        }
+
+        private Topic register(String name) {
+            synchronized (idLock) {
+                Topic topic = new Topic(name, nextId);
+                topic.setTopologyListener(events);
+                Topic[] slots = byId;
+                int index = nextId - firstId;
+                if (index == slots.length) {
+                    slots = Arrays.copyOf(slots, slots.length * 2);
+                }
+                slots[index] = topic;
+                nextId++;
+                byId = slots;
+                return topic;
+            }
+        }
+
+        /**
+         * @return the topic with this name, or null; unlike {@link #getTopic(String)}
+         *         it never creates one.
+         */
+        public Topic findTopic(String name) {
+            return topics.get(name);
+        }
+
+        /**
+         * @return the topic with this id (see {@link Topic#getId()}), or null if
+         *         no topic has it.
+         */
+        public Topic getTopic(int id) {
+            // byId is read first: it is written last, so firstId is at least as new as it
+            Topic[] slots = byId;
+            int index = id - firstId;
+            Topic topic = index >= 0 && index < slots.length ? slots[index] : null;
+            // A clear() between the two reads leaves them mismatched; the old topic is gone either way
+            return topic != null && topic.getId() == id ? topic : null;
+        }
+
+        public int getTopicCount() {
+            return topics.size();
+        }
+
+        /**
+         * Gets (or creates) a topic and switches it to the given delivery mode.
+         * Topics obtained through {@link #getTopic(String)} stay synchronous.
+         */
+        public Topic getTopic(String name, DeliveryMode mode) {
+            Topic topic = getTopic(name);
+            topic.setDeliveryMode(mode);
+            return topic;
         }
 
         public Collection<Topic> getTopics() {
@@ -15,12 +186,68 @@ public class TopicManagerSingleton {
         }
 
         public void  clear() {
-            topics.clear();
+            clearLock.writeLock().lock();
+            try {
+                // Stop ring consumers before the topics are dropped
+                for (Topic topic : topics.values()) {
+                    topic.setDeliveryMode(DeliveryMode.SYNCHRONOUS);
+                    topic.setTopologyListener(null);
+                }
+                topics.clear();
+                synchronized (idLock) {
+                    firstId = nextId;
+                    byId = new Topic[64];
+                }
+            } finally {
+                clearLock.writeLock().unlock();
+            }
+            events.topicsCleared();
+        }
+
+        public void addTopologyListener(TopologyListener listener) {
+            listeners.add(listener);
+        }
+
+        public void removeTopologyListener(TopologyListener listener) {
+            listeners.remove(listener);
         }
     }
 
     private static class Holder {
-        private static final TopicManager INSTANCE = new TopicManager();
+        private static final TopicManager INSTANCE = namespace(DEFAULT_NAMESPACE);
+    }
+
+    /**
+     * @return the manager for a namespace, created on first use. The default
+     *         namespace is the one {@link #get()} returns.
+     */
+    public static TopicManager namespace(String name) {
+        return namespaces.computeIfAbsent(name, n -> new TopicManager(n, true));
+    }
+
+    /**
+     * Unregisters a namespace and clears its topics. A later
+     * {@link #namespace(String)} with the same name starts afresh; code still
+     * holding the old manager keeps a working but unregistered registry.
+     *
+     * @return false if no such namespace was registered.
+     * @throws IllegalArgumentException For the default namespace.
+     */
+    public static boolean removeNamespace(String name) {
+        if (DEFAULT_NAMESPACE.equals(name)) {
+            throw new IllegalArgumentException("The default namespace cannot be removed");
+        }
+        TopicManager manager = namespaces.remove(name);
+        if (manager == null) {
+            return false;
+        }
+        manager.clear();
+        return true;
+    }
+
+    /** @return the managers of every namespace used so far. */
+    public static Collection<TopicManager> namespaces() {
+        return Collections.unmodifiableCollection(namespaces.values());
     }
 
     public static TopicManager get() {
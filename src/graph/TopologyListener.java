@@ -0,0 +1,30 @@
+package graph;
+
+/**
+ * Notified when the shape of the topic graph changes: topics appearing, and
+ * agents subscribing to or publishing on a topic. Register one with
+ * {@link TopicManagerSingleton.TopicManager#addTopologyListener(TopologyListener)}.
+ *
+ * Events are delivered on the thread that made the change, after it took
+ * effect, and only for actual changes (subscribing twice fires once).
+ */
+public interface TopologyListener {
+    default void topicCreated(Topic topic) {
+    }
+
+    default void subscribed(Topic topic, Agent agent) {
+    }
+
+    default void unsubscribed(Topic topic, Agent agent) {
+    }
+
+    default void publisherAdded(Topic topic, Agent agent) {
+    }
+
+    default void publisherRemoved(Topic topic, Agent agent) {
+    }
+
+    /** All topics were dropped by {@link TopicManagerSingleton.TopicManager#clear()}. */
+    default void topicsCleared() {
+    }
+}
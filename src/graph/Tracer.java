@@ -0,0 +1,255 @@
+package graph;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records message hops (topic, agent, time, value) for offline analysis.
+ *
+ * Off unless the JVM runs with {@code -Dgraph.trace=true}. Call sites guard
+ * with {@code if (Tracer.ENABLED)}, a constant, so disabled tracing costs
+ * nothing once compiled. When enabled, events go into a fixed set of
+ * {@link #RING_COUNT} rings ({@code -Dgraph.trace.rings}, twice the CPUs by
+ * default) of the last {@link #RING_SIZE} events each
+ * ({@code -Dgraph.trace.size}), without locks or allocation, and
+ * {@link #dump(Path, long, long)} writes the events of a time window from all
+ * rings to a CSV file.
+ *
+ * A thread picks a ring by its id and holds it only while writing one event,
+ * moving on to the next ring if another thread holds it. Memory is therefore
+ * bounded by the ring count, about 40 bytes per event slot, however many
+ * threads trace, e.g. one virtual thread per connection. A ring keeps the
+ * last events of whichever threads used it, so with many threads its window
+ * is shorter than {@link #RING_SIZE} events of any single one.
+ */
+public final class Tracer {
+    public static final boolean ENABLED = Boolean.getBoolean("graph.trace");
+
+    /** Events kept per ring, a power of two. */
+    public static final int RING_SIZE = Integer.highestOneBit(Math.max(2, Integer.getInteger("graph.trace.size", 8192)));
+
+    /** Rings shared by all tracing threads, a power of two. */
+    public static final int RING_COUNT = Integer.highestOneBit(Math.max(1,
+            Integer.getInteger("graph.trace.rings", 2 * Runtime.getRuntime().availableProcessors())));
+
+    // Wall-clock time of nanoTime() == BASE_NANOS, to turn event times into epoch time
+    private static final long BASE_NANOS = System.nanoTime();
+    private static final long BASE_EPOCH_NANOS = System.currentTimeMillis() * 1_000_000L;
+
+    // Created on first use, so threads that never trace cost nothing
+    private static final AtomicReferenceArray<Ring> rings = new AtomicReferenceArray<>(RING_COUNT);
+
+    // sun.misc.Unsafe.loadFence(), looked up reflectively since the code targets Java 8; null if unavailable
+    private static final MethodHandle LOAD_FENCE = loadFenceHandle();
+    private static volatile int fenceFallback;
+
+    private Tracer() {
+    }
+
+    /** Records that {@code agent} was called with {@code value} from {@code topic}. */
+    public static void hop(String topic, String agent, double value) {
+        Thread current = Thread.currentThread();
+        long nanos = System.nanoTime();
+        int index = (int) current.getId();
+        for (int tries = 0; ; tries++) {
+            Ring r = ring(index++ & (RING_COUNT - 1));
+            if (r.tryAcquire()) {
+                try {
+                    r.add(nanos, current.getName(), topic, agent, value);
+                } finally {
+                    r.release();
+                }
+                return;
+            }
+            if (tries >= RING_COUNT) {
+                // Every ring was busy; let the writers finish
+                Thread.yield();
+                tries = 0;
+            }
+        }
+    }
+
+    private static Ring ring(int index) {
+        Ring r = rings.get(index);
+        if (r == null) {
+            rings.compareAndSet(index, null, new Ring());
+            r = rings.get(index);
+        }
+        return r;
+    }
+
+    private static MethodHandle loadFenceHandle() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "loadFence", MethodType.methodType(void.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Keeps the loads before it from being reordered with the loads after it. */
+    private static void loadFence() {
+        if (LOAD_FENCE == null) {
+            // A volatile write then read fences on every JVM this runs on, if more than needed
+            fenceFallback = 0;
+            int ignored = fenceFallback;
+            return;
+        }
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Load fence failed", e);
+        }
+    }
+
+    /**
+     * Writes the events recorded between two wall-clock times, oldest first,
+     * as CSV with the columns {@code epoch_nanos,thread,topic,agent,value}.
+     *
+     * @return the number of events written.
+     */
+    public static int dump(Path file, long fromEpochMillis, long toEpochMillis) throws IOException {
+        long from = fromEpochMillis * 1_000_000L - BASE_EPOCH_NANOS + BASE_NANOS;
+        long to = toEpochMillis * 1_000_000L - BASE_EPOCH_NANOS + BASE_NANOS;
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < RING_COUNT; i++) {
+            Ring r = rings.get(i);
+            if (r != null) {
+                r.collect(from, to, events);
+            }
+        }
+        events.sort(Comparator.comparingLong(e -> e.nanos));
+
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("epoch_nanos,thread,topic,agent,value\n");
+            for (Event e : events) {
+                out.write(Long.toString(e.nanos - BASE_NANOS + BASE_EPOCH_NANOS));
+                out.write(',');
+                out.write(csv(e.thread));
+                out.write(',');
+                out.write(csv(e.topic));
+                out.write(',');
+                out.write(csv(e.agent));
+                out.write(',');
+                out.write(Double.toString(e.value));
+                out.write('\n');
+            }
+        }
+        return events.size();
+    }
+
+    /** Writes the events of the last {@code millis} milliseconds; see {@link #dump(Path, long, long)}. */
+    public static int dumpLast(Path file, long millis) throws IOException {
+        long now = System.currentTimeMillis();
+        return dump(file, now - millis, now);
+    }
+
+    private static String csv(String s) {
+        if (s == null) {
+            return "";
+        }
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Events of the threads that used this ring. One thread at a time writes,
+     * between {@link #tryAcquire()} and {@link #release()}; {@link #collect}
+     * may read concurrently.
+     */
+    private static final class Ring {
+        private static final AtomicLongFieldUpdater<Ring> WRITTEN = AtomicLongFieldUpdater.newUpdater(Ring.class, "written");
+        private static final AtomicIntegerFieldUpdater<Ring> BUSY = AtomicIntegerFieldUpdater.newUpdater(Ring.class, "busy");
+
+        final long[] times = new long[RING_SIZE];
+        final String[] threads = new String[RING_SIZE];
+        final String[] topics = new String[RING_SIZE];
+        final String[] agents = new String[RING_SIZE];
+        final double[] values = new double[RING_SIZE];
+        // Events ever written; event n is at index n & (RING_SIZE - 1)
+        volatile long written;
+        // 1 while a thread is writing
+        volatile int busy;
+
+        boolean tryAcquire() {
+            return busy == 0 && BUSY.compareAndSet(this, 0, 1);
+        }
+
+        void release() {
+            // Ordered store: the next writer sees this one's events and count
+            BUSY.lazySet(this, 0);
+        }
+
+        void add(long nanos, String thread, String topic, String agent, double value) {
+            long n = written;
+            int i = (int) n & (RING_SIZE - 1);
+            times[i] = nanos;
+            threads[i] = thread;
+            topics[i] = topic;
+            agents[i] = agent;
+            values[i] = value;
+            // Ordered store: the slot is visible before the count, without a full fence
+            WRITTEN.lazySet(this, n + 1);
+        }
+
+        void collect(long from, long to, List<Event> into) {
+            long end = written;
+            long start = Math.max(0, end - RING_SIZE);
+            List<Event> found = new ArrayList<>();
+            long[] positions = new long[(int) (end - start)];
+            for (long n = start; n < end; n++) {
+                int i = (int) n & (RING_SIZE - 1);
+                long t = times[i];
+                if (t >= from && t <= to) {
+                    positions[found.size()] = n;
+                    found.add(new Event(t, threads[i], topics[i], agents[i], values[i]));
+                }
+            }
+            // The copies above must not be satisfied after the count below is read
+            loadFence();
+            // The writer may be overwriting event (written - RING_SIZE) right now, and
+            // anything older was lapped while we were copying
+            long oldestIntact = written - RING_SIZE + 1;
+            for (int k = 0; k < found.size(); k++) {
+                if (positions[k] >= oldestIntact) {
+                    into.add(found.get(k));
+                }
+            }
+        }
+    }
+
+    private static final class Event {
+        final long nanos;
+        final String thread;
+        final String topic;
+        final String agent;
+        final double value;
+
+        Event(long nanos, String thread, String topic, String agent, double value) {
+            this.nanos = nanos;
+            this.thread = thread;
+            this.topic = topic;
+            this.agent = agent;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import graph.Agent;
+import graph.Metrics;
+import graph.QueueingAgent;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+import server.RequestParser.RequestInfo;
+
+/**
+ * Serves the pub/sub metrics (see {@link Metrics}) in the Prometheus text
+ * exposition format. Register it where it should be exposed, usually with
+ * {@code server.addServlet("GET", MetricsServlet.PATH, new MetricsServlet())}.
+ *
+ * Per topic it reports the published value count, the subscriber count and
+ * a fan-out latency histogram. Per agent it reports the callback count and
+ * latency summed over the agent's subscriptions and, for a
+ * {@link QueueingAgent}, the queue depth and the callbacks of the wrapped
+ * agent on its worker thread. The histograms hold the timed sample described
+ * in {@link Metrics}, so their counts are lower than the counters. Agent
+ * names need not be unique, so each agent also gets an {@code agent_id}
+ * label; {@code instance} is left to Prometheus, which sets it per target.
+ */
+public class MetricsServlet implements Servlet {
+
+    public static final String PATH = "/metrics";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** null reports every namespace registered in {@link TopicManagerSingleton}. */
+    private final Collection<TopicManager> managers;
+
+    public MetricsServlet() {
+        this(null);
+    }
+
+    /**
+     * @param managers The topic managers to report; null for every registered
+     *                 namespace, looked up again on each request.
+     */
+    public MetricsServlet(Collection<TopicManager> managers) {
+        this.managers = managers;
+    }
+
+    @Override
+    public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: " + CONTENT_TYPE + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "\r\n";
+        toClient.write(head.getBytes(StandardCharsets.US_ASCII));
+        toClient.write(body);
+        toClient.flush();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /** @return the current metrics in Prometheus text format. */
+    public String scrape() {
+        List<TopicManager> sorted = new ArrayList<>(managers != null ? managers : TopicManagerSingleton.namespaces());
+        sorted.sort(Comparator.comparing(TopicManager::getNamespace));
+
+        StringBuilder published = family("graph_topic_published_total", "counter", "Values published to the topic.");
+        StringBuilder subscribers = family("graph_topic_subscribers", "gauge", "Agents subscribed to the topic.");
+        StringBuilder fanOut = family("graph_topic_fanout_seconds", "histogram",
+                "Time for one publish to reach all subscribers.");
+        StringBuilder callbacks = family("graph_agent_callbacks_total", "counter", "Callbacks made to the agent.");
+        StringBuilder latency = family("graph_agent_callback_seconds", "histogram",
+                "Sampled agent callback latency, including what the agent publishes synchronously.");
+        StringBuilder depth = family("graph_agent_queue_depth", "gauge", "Messages waiting in the agent's mailbox.");
+        StringBuilder workerCallbacks = family("graph_agent_worker_callbacks_total", "counter",
+                "Callbacks of the agent a queueing agent wraps, made on its worker thread.");
+        StringBuilder workerLatency = family("graph_agent_worker_callback_seconds", "histogram",
+                "Sampled latency of the wrapped agent's callbacks on a queueing agent's worker thread.");
+
+        for (TopicManager tm : sorted) {
+            String ns = tm.getNamespace();
+            List<Topic> topics = new ArrayList<>(tm.getTopics());
+            topics.sort(Comparator.comparing(t -> t.name));
+            // Per agent, the callback count and latency buckets of all its subscriptions, in first-seen order
+            Map<Agent, long[]> byAgent = new IdentityHashMap<>();
+            List<Agent> agents = new ArrayList<>();
+
+            for (Topic topic : topics) {
+                String labels = "namespace=\"" + escape(ns) + "\",topic=\"" + escape(topic.name) + "\"";
+                Metrics.Recorder m = topic.getMetrics();
+                sample(published, "graph_topic_published_total", labels, m == null ? 0 : m.getCount());
+                sample(subscribers, "graph_topic_subscribers", labels, topic.getSubs().size());
+                if (m != null && m.getLatency() != null) {
+                    histogram(fanOut, "graph_topic_fanout_seconds", labels, totals(m.getLatency()));
+                }
+                for (Topic.Subscription s : topic.getSubscriptions()) {
+                    long[] sum = byAgent.get(s.getAgent());
+                    if (sum == null) {
+                        // Histogram totals, then the callback count
+                        sum = new long[Metrics.Histogram.bucketCount() + 2];
+                        byAgent.put(s.getAgent(), sum);
+                        agents.add(s.getAgent());
+                    }
+                    Metrics.Recorder r = s.getMetrics();
+                    if (r != null) {
+                        sum[sum.length - 1] += r.getCount();
+                        if (r.getLatency() != null) {
+                            add(sum, totals(r.getLatency()));
+                        }
+                    }
+                }
+            }
+
+            for (Agent agent : agents) {
+                String labels = "namespace=\"" + escape(ns) + "\",agent=\"" + escape(agent.getName())
+                        + "\",agent_id=\"" + Integer.toHexString(System.identityHashCode(agent)) + "\"";
+                long[] sum = byAgent.get(agent);
+                sample(callbacks, "graph_agent_callbacks_total", labels, sum[sum.length - 1]);
+                histogram(latency, "graph_agent_callback_seconds", labels, sum);
+                if (agent instanceof QueueingAgent) {
+                    QueueingAgent queueing = (QueueingAgent) agent;
+                    sample(depth, "graph_agent_queue_depth", labels, queueing.getQueueDepth());
+                    Metrics.Recorder r = queueing.getWorkerMetrics();
+                    sample(workerCallbacks, "graph_agent_worker_callbacks_total", labels, r.getCount());
+                    if (r.getLatency() != null) {
+                        histogram(workerLatency, "graph_agent_worker_callback_seconds", labels, totals(r.getLatency()));
+                    }
+                }
+            }
+        }
+
+        return new StringBuilder()
+                .append(published).append(subscribers).append(fanOut)
+                .append(callbacks).append(latency).append(depth)
+                .append(workerCallbacks).append(workerLatency)
+                .toString();
+    }
+
+    private static StringBuilder family(String name, String type, String help) {
+        return new StringBuilder()
+                .append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    /** @return the bucket counts of a histogram followed by its sum in nanoseconds. */
+    private static long[] totals(Metrics.Histogram h) {
+        int buckets = Metrics.Histogram.bucketCount();
+        long[] totals = new long[buckets + 1];
+        for (int i = 0; i < buckets; i++) {
+            totals[i] = h.getBucket(i);
+        }
+        totals[buckets] = h.getSumNanos();
+        return totals;
+    }
+
+    private static void add(long[] into, long[] values) {
+        for (int i = 0; i < values.length; i++) {
+            into[i] += values[i];
+        }
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, long[] totals) {
+        int buckets = Metrics.Histogram.bucketCount();
+        long cumulative = 0;
+        for (int i = 0; i < buckets; i++) {
+            cumulative += totals[i];
+            long bound = Metrics.Histogram.upperBoundNanos(i);
+            // Only the power-of-two bounds, to keep the scrape small; the counts at them are exact
+            if (bound != Long.MAX_VALUE && Long.bitCount(bound) != 1) {
+                continue;
+            }
+            String le = bound == Long.MAX_VALUE ? "+Inf" : Double.toString(bound / 1e9);
+            out.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(totals[buckets] / 1e9).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    /** Escapes a label value as the exposition format requires. */
+    private static String escape(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement = c == '\\' ? "\\\\" : c == '"' ? "\\\"" : c == '\n' ? "\\n" : null;
+            if (replacement != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(value.length() + 8).append(value, 0, i);
+                }
+                sb.append(replacement);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? value : sb.toString();
+    }
+}
@@ -0,0 +1,323 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming reader for {@code multipart/form-data} bodies.
+ *
+ * Parts are read one at a time, in order, straight from the body stream:
+ * {@link #nextPart()} parses the part headers and returns a {@link Part}
+ * whose {@link Part#getInputStream()} yields the part's bytes up to the next
+ * boundary. Only a small window (a read chunk plus one delimiter) is held in
+ * memory, so an uploaded file can be piped to disk or into a parser without
+ * being buffered whole. A part that is not read to the end is skipped when
+ * the next one is requested.
+ */
+public class MultipartStream {
+    private static final int MAX_PART_HEADER_BYTES = 8 * 1024;
+    private static final int CHUNK = 8192;
+
+    private final InputStream in;
+    /** CRLF "--" boundary; the body's first boundary gets a virtual CRLF in front. */
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int pos = 0;
+    private int end = 0;
+    private boolean eof = false;
+
+    private Part current;
+    private boolean finished = false;
+    private boolean started = false;
+
+    /**
+     * @param in The request body.
+     * @param boundary The boundary from the Content-Type header (without leading dashes).
+     */
+    public MultipartStream(InputStream in, String boundary) {
+        if (boundary == null || boundary.isEmpty()) {
+            throw new IllegalArgumentException("Multipart boundary cannot be null or empty");
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buf = new byte[Math.max(CHUNK, 2 * delimiter.length) + delimiter.length];
+        // Lets the opening boundary, which has no CRLF before it, match the delimiter
+        buf[end++] = '\r';
+        buf[end++] = '\n';
+    }
+
+    /**
+     * Extracts the boundary parameter from a Content-Type header value.
+     *
+     * @param contentType The Content-Type header, e.g. {@code multipart/form-data; boundary=xyz}.
+     * @return The boundary, or null if the header is not multipart or has none.
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/")) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            String p = param.trim();
+            if (p.toLowerCase().startsWith("boundary=")) {
+                String value = p.substring("boundary=".length()).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value.isEmpty() ? null : value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Advances to the next part, skipping any unread bytes of the current one.
+     *
+     * @return The next part, or null after the closing boundary.
+     * @throws IOException If the body ends early or a part header is malformed.
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (!started) {
+            // Skip the preamble up to the first boundary
+            started = true;
+            new PartInputStream().skipToEnd();
+        } else if (current != null) {
+            current.in.skipToEnd();
+        }
+        current = null;
+
+        // After a boundary: "--" closes the body, otherwise CRLF starts a part
+        if (!ensure(2)) {
+            throw new IOException("Unexpected end of multipart body");
+        }
+        if (buf[pos] == '-' && buf[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        skipLine();
+
+        Map<String, String> headers = readPartHeaders();
+        current = new Part(headers, new PartInputStream());
+        return current;
+    }
+
+    private Map<String, String> readPartHeaders() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        int total = 0;
+        while (true) {
+            String line = readLine();
+            if (line == null) {
+                throw new IOException("Unexpected end of multipart headers");
+            }
+            total += line.length() + 2;
+            if (total > MAX_PART_HEADER_BYTES) {
+                throw new IOException("Multipart part headers exceed " + MAX_PART_HEADER_BYTES + " bytes");
+            }
+            if (line.isEmpty()) {
+                return headers;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    /** Reads one CRLF- (or LF-) terminated line, or null at end of input. */
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (!ensure(1)) {
+                return sb.length() == 0 ? null : sb.toString();
+            }
+            byte b = buf[pos++];
+            if (b == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) (b & 0xff));
+            if (sb.length() > MAX_PART_HEADER_BYTES) {
+                throw new IOException("Multipart header line too long");
+            }
+        }
+    }
+
+    /** Skips transport padding and the line break after a boundary. */
+    private void skipLine() throws IOException {
+        readLine();
+    }
+
+    /** Makes sure at least {@code n} unread bytes are buffered, unless the input ends first. */
+    private boolean ensure(int n) throws IOException {
+        while (end - pos < n) {
+            if (eof) {
+                return false;
+            }
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, end - pos);
+                end -= pos;
+                pos = 0;
+            }
+            int read = in.read(buf, end, buf.length - end);
+            if (read == -1) {
+                eof = true;
+            } else {
+                end += read;
+            }
+        }
+        return true;
+    }
+
+    /** Index of the delimiter in the unread window, or -1. */
+    private int findDelimiter() {
+        int last = end - delimiter.length;
+        outer:
+        for (int i = pos; i <= last; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /** One part of the body: its headers and a stream over its content. */
+    public static class Part {
+        private final Map<String, String> headers;
+        private final PartInputStream in;
+
+        private Part(Map<String, String> headers, PartInputStream in) {
+            this.headers = headers;
+            this.in = in;
+        }
+
+        /** @return the part headers, keyed by lower-case name. */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /** @return the form field name from Content-Disposition, or null. */
+        public String getName() {
+            return dispositionParam("name");
+        }
+
+        /** @return the uploaded file name from Content-Disposition, or null if this is not a file. */
+        public String getFilename() {
+            return dispositionParam("filename");
+        }
+
+        /** @return the part's Content-Type, or null. */
+        public String getContentType() {
+            return headers.get("content-type");
+        }
+
+        /** @return the part content; valid until the next call to {@link MultipartStream#nextPart()}. */
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        /**
+         * Copies the rest of the part content to {@code out}.
+         *
+         * @return The number of bytes copied.
+         */
+        public long copyTo(OutputStream out) throws IOException {
+            byte[] chunk = new byte[CHUNK];
+            long total = 0;
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                out.write(chunk, 0, n);
+                total += n;
+            }
+            return total;
+        }
+
+        private String dispositionParam(String key) {
+            String disposition = headers.get("content-disposition");
+            if (disposition == null) {
+                return null;
+            }
+            for (String param : disposition.split(";")) {
+                String p = param.trim();
+                int eq = p.indexOf('=');
+                if (eq > 0 && p.substring(0, eq).trim().equalsIgnoreCase(key)) {
+                    String value = p.substring(eq + 1).trim();
+                    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Content of the current part, ending right before the next delimiter. */
+    private final class PartInputStream extends InputStream {
+        private boolean done = false;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int at = findDelimiter();
+                int safe;
+                if (at >= 0) {
+                    safe = at - pos;
+                    if (safe == 0) {
+                        // Consume the delimiter; the caller of nextPart() reads what follows
+                        pos += delimiter.length;
+                        done = true;
+                        return -1;
+                    }
+                } else {
+                    // Hold back a tail that might be the start of the delimiter
+                    safe = end - pos - (delimiter.length - 1);
+                }
+                if (safe > 0) {
+                    int n = Math.min(len, safe);
+                    System.arraycopy(buf, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+                if (!ensure(end - pos + 1)) {
+                    throw new IOException("Multipart body ended without a closing boundary");
+                }
+            }
+        }
+
+        void skipToEnd() throws IOException {
+            byte[] skip = new byte[CHUNK];
+            while (read(skip, 0, skip.length) != -1) {
+                // discard
+            }
+        }
+
+        @Override
+        public void close() {
+            // Closing a part does not close the body
+        }
+    }
+}
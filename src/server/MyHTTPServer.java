@@ -4,8 +4,9 @@ package server;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.Map;
+import java.net.SocketTimeoutException;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.net.ServerSocket;
 
 /**
@@ -14,10 +15,8 @@ import java.net.ServerSocket;
  */
 public class MyHTTPServer extends Thread implements HTTPServer {
 
-    /** Concurrent map to manage servlets for GET,POST,DELETE requests. */
-    private ConcurrentHashMap<String, Servlet> getServlets = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, Servlet> postServlets = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, Servlet> deleteServlets = new ConcurrentHashMap<>();
+    /** Servlets for GET,POST,DELETE requests. */
+    private final ServletRegistry servlets = new ServletRegistry();
 
     /** Thread pool to handle multiple client connections concurrently. */
     private ExecutorService requestHandlerPool;
@@ -34,6 +33,34 @@ public class MyHTTPServer extends Thread implements HTTPServer {
     /** Number of threads in the thread pool for handling requests. */
     private final int threadCount;
 
+    /** Limits in-flight connections when the pool itself is unbounded (virtual threads); null otherwise. */
+    private final Semaphore connectionLimit;
+
+    /** Connections handed to the fixed pool that no pool thread has picked up yet. */
+    private final AtomicInteger queuedConnections = new AtomicInteger();
+
+    /**
+     * On the fixed pool, how long a persistent connection blocks in a read
+     * before it checks whether other connections are waiting for its thread.
+     */
+    private static final int IDLE_POLL_MILLIS = 50;
+
+    /** Pending connections the OS may queue before accept; the default of 50 is too small under load. */
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    /** How long a connection may stay silent while reading a request or between requests. */
+    private volatile int keepAliveTimeoutMillis = ResponseFramer.DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    /** How many requests one connection may carry. */
+    private volatile int maxRequestsPerConnection = ResponseFramer.DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+
+    /** Largest accepted request line plus headers, and largest accepted body. */
+    private volatile int maxHeaderBytes = RequestFramer.DEFAULT_MAX_HEADER_BYTES;
+    private volatile long maxBodyBytes = RequestFramer.DEFAULT_MAX_BODY_BYTES;
+
+    /** Bodies above this size are streamed to the servlet instead of buffered. */
+    private volatile long streamingThreshold = RequestParser.RequestStream.DEFAULT_STREAMING_THRESHOLD;
+
     /**
      * Constructs a new HTTP server instance with the specified port and thread count.
      *
@@ -42,9 +69,55 @@ public class MyHTTPServer extends Thread implements HTTPServer {
      */
     public MyHTTPServer(int port, int threadCount) {
         // Initialize the thread pool with a fixed number of threads
-        requestHandlerPool = Executors.newFixedThreadPool(threadCount);
+        this(port, Executors.newFixedThreadPool(threadCount), threadCount, null);
+    }
+
+    private MyHTTPServer(int port, ExecutorService requestHandlerPool, int threadCount, Semaphore connectionLimit) {
+        this.requestHandlerPool = requestHandlerPool;
         this.port = port;
         this.threadCount = threadCount;
+        this.connectionLimit = connectionLimit;
+    }
+
+    /**
+     * Creates a server that serves every connection on its own virtual thread.
+     * Requires a Java 21+ runtime.
+     *
+     * @param port The port number for the server to listen on.
+     * @param maxConcurrentConnections The maximum number of connections served at once;
+     *                                 further connections wait in the accept backlog.
+     * @return The new server.
+     * @throws UnsupportedOperationException If the runtime has no virtual threads.
+     */
+    public static MyHTTPServer withVirtualThreads(int port, int maxConcurrentConnections) {
+        if (maxConcurrentConnections < 1) {
+            throw new IllegalArgumentException("maxConcurrentConnections must be positive");
+        }
+        return new MyHTTPServer(port, newVirtualThreadPerTaskExecutor(), maxConcurrentConnections,
+                new Semaphore(maxConcurrentConnections));
+    }
+
+    /**
+     * @return true if this runtime can run {@link #withVirtualThreads(int, int)}.
+     */
+    public static boolean virtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Looked up reflectively so the server still compiles and runs on older JDKs
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads require a Java 21+ runtime", e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
     }
 
     /**
@@ -55,23 +128,7 @@ public class MyHTTPServer extends Thread implements HTTPServer {
      * @param servlet The servlet instance to handle the requests.
      */
     public void addServlet(String httpCommand, String uri, Servlet servlet) {
-        if (uri == null || servlet == null) {
-            return;
-        }
-
-        httpCommand = httpCommand.toUpperCase();
-
-        switch (httpCommand) {
-            case "GET":
-                getServlets.put(uri, servlet);
-                break;
-            case "POST":
-                postServlets.put(uri, servlet);
-                break;
-            case "DELETE":
-                deleteServlets.put(uri, servlet);
-                break;
-        }
+        servlets.add(httpCommand, uri, servlet);
     }
 
     /**
@@ -81,30 +138,14 @@ public class MyHTTPServer extends Thread implements HTTPServer {
      * @param uri The URI that the servlet was handling.
      */
     public void removeServlet(String httpCommand, String uri) {
-        if (uri == null) {
-            return;
-        }
-
-        httpCommand = httpCommand.toUpperCase();
-
-        switch (httpCommand) {
-            case "GET":
-                getServlets.remove(uri);
-                break;
-            case "POST":
-                postServlets.remove(uri);
-                break;
-            case "DELETE":
-                deleteServlets.remove(uri);
-                break;
-        }
+        servlets.remove(httpCommand, uri);
     }
 
     /**
      * Starts the HTTP server to listen for and handle client connections.
      */
     public void run() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        try (ServerSocket serverSocket = new ServerSocket(port, ACCEPT_BACKLOG)) {
             this.serverSocket = serverSocket;
             serverSocket.setSoTimeout(1000); // Set timeout for socket accept operations
 
@@ -112,59 +153,23 @@ public class MyHTTPServer extends Thread implements HTTPServer {
                 try {
                     // Accept a new client connection
                     Socket clientSocket = serverSocket.accept();
+                    if (connectionLimit != null && !acquireConnectionPermit(clientSocket)) {
+                        break;
+                    }
 
-                    // Handle the client request in a separate thread
-                    requestHandlerPool.submit(() -> {
-                        try {
-                            Thread.sleep(125); // Delay to ensure proper request reception
-                            BufferedReader requestReader = createBufferedReader(clientSocket);
-
-                            // Parse the incoming request
-                            RequestParser.RequestInfo requestInfo = RequestParser.parseRequest(requestReader);
-                            ConcurrentHashMap<String, Servlet> servletMap;
-
-                            if (requestInfo != null) {
-                                switch (requestInfo.getHttpCommand()) {
-                                    case "GET":
-                                        servletMap = getServlets;
-                                        break;
-                                    case "POST":
-                                        servletMap = postServlets;
-                                        break;
-                                    case "DELETE":
-                                        servletMap = deleteServlets;
-                                        break;
-                                    default:
-                                        throw new IllegalArgumentException("Unsupported HTTP command: " + requestInfo.getHttpCommand());
-                                }
-
-                                // Find the best matching servlet based on the longest URI match
-                                String bestMatchUri = "";
-                                Servlet matchingServlet = null;
-                                for (Map.Entry<String, Servlet> entry : servletMap.entrySet()) {
-                                    if (requestInfo.getUri().startsWith(entry.getKey()) && entry.getKey().length() > bestMatchUri.length()) {
-                                        bestMatchUri = entry.getKey();
-                                        matchingServlet = entry.getValue();
-                                    }
-                                }
-
-                                // Handle the request using the matching servlet
-                                if (matchingServlet != null) {
-                                    matchingServlet.handle(requestInfo, clientSocket.getOutputStream());
-                                }
-                            }
-                            requestReader.close();
-                        } catch (IOException | InterruptedException e) {
-                            e.printStackTrace();
-                        } finally {
-                            // Close the client connection
-                            try {
-                                clientSocket.close();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
+                    // Handle the client connection in a separate thread
+                    if (connectionLimit == null) {
+                        queuedConnections.incrementAndGet();
+                    }
+                    try {
+                        requestHandlerPool.submit(() -> serveConnection(clientSocket));
+                    } catch (RejectedExecutionException e) {
+                        // The pool shut down under us: nothing will serve or release this connection
+                        abandon(clientSocket);
+                        if (isServerStopped) {
+                            break;
                         }
-                    });
+                    }
                 } catch (IOException e) {
                     // Handle socket accept timeout exception
                     if (isServerStopped) {
@@ -177,24 +182,188 @@ public class MyHTTPServer extends Thread implements HTTPServer {
         }
     }
 
+    /** Undoes the bookkeeping of a connection that was accepted but never handed to the pool. */
+    private void abandon(Socket clientSocket) {
+        if (connectionLimit != null) {
+            connectionLimit.release();
+        } else {
+            queuedConnections.decrementAndGet();
+        }
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            // Nothing left to do for this connection
+        }
+    }
+
+    /**
+     * Waits for a connection slot, closing the connection if the server is stopped meanwhile.
+     *
+     * @return false if the server stopped while waiting.
+     */
+    private boolean acquireConnectionPermit(Socket clientSocket) throws IOException {
+        try {
+            connectionLimit.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            clientSocket.close();
+            return false;
+        }
+    }
+
     /**
-     * Creates a BufferedReader to read from the client socket.
+     * Serves requests on one connection until the client or the server ends it.
+     * Requests are answered in order, so pipelined requests are supported; the
+     * connection closes when the client asks for it, after
+     * {@code maxRequestsPerConnection} requests or after an idle timeout.
+     *
+     * On the fixed pool a persistent connection holds a pool thread, so it is
+     * only kept while no other connection is waiting for one: responses say
+     * {@code Connection: close} when connections are queued, and a connection
+     * idle between requests is closed as soon as one is.
      *
      * @param clientSocket The client socket.
-     * @return A BufferedReader to read from the socket.
-     * @throws IOException If an I/O error occurs.
      */
-    private static BufferedReader createBufferedReader(Socket clientSocket) throws IOException {
-        InputStream inputStream = clientSocket.getInputStream();
-        int availableBytes = inputStream.available();
-        byte[] buffer = new byte[availableBytes];
-        int bytesRead = inputStream.read(buffer, 0, availableBytes);
+    private void serveConnection(Socket clientSocket) {
+        boolean pooled = connectionLimit == null;
+        if (pooled) {
+            queuedConnections.decrementAndGet();
+        }
+        try {
+            clientSocket.setSoTimeout(keepAliveTimeoutMillis);
+            RequestParser.RequestStream requests = new RequestParser.RequestStream(
+                    clientSocket.getInputStream(), maxHeaderBytes, maxBodyBytes, streamingThreshold);
+            OutputStream toClient = new BufferedOutputStream(clientSocket.getOutputStream());
+            int served = 0;
+            boolean keepAlive = true;
 
-        return new BufferedReader(
-                new InputStreamReader(
-                        new ByteArrayInputStream(buffer, 0, bytesRead)
-                )
-        );
+            while (keepAlive && !isServerStopped) {
+                // Parse the next incoming request
+                RequestParser.RequestInfo requestInfo = pooled ? nextRequest(clientSocket, requests) : requests.next();
+                if (requestInfo == null || requestInfo.getHttpCommand() == null) {
+                    break;
+                }
+                served++;
+                keepAlive = ResponseFramer.wantsKeepAlive(requestInfo) && served < maxRequestsPerConnection
+                        && !(pooled && queuedConnections.get() > 0);
+
+                ResponseFramer response = new ResponseFramer(toClient, requestInfo, keepAlive);
+                if (!servlets.supports(requestInfo.getHttpCommand())) {
+                    response.write("HTTP/1.1 405 Method Not Allowed\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes());
+                } else {
+                    try {
+                        // Handle the request using the servlet with the longest URI match
+                        servlets.dispatch(requestInfo, response);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        response.fail();
+                    }
+                }
+                response.finish();
+                keepAlive = response.isKeepAlive();
+            }
+        } catch (RequestRejectedException e) {
+            // Over a size limit or malformed; tell the client why before closing
+            try {
+                clientSocket.getOutputStream().write(e.toResponse());
+            } catch (IOException ignored) {
+                // client already gone
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection; just close it
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            // Close the client connection
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (connectionLimit != null) {
+                connectionLimit.release();
+            }
+        }
+    }
+
+    /**
+     * Waits for the next request in short reads, giving up once the connection
+     * has been silent for the idle timeout, or as soon as another connection
+     * is waiting for a pool thread while this one sits between requests.
+     *
+     * @return the request, or null if the connection should close.
+     */
+    private RequestParser.RequestInfo nextRequest(Socket clientSocket, RequestParser.RequestStream requests) throws IOException {
+        int timeout = keepAliveTimeoutMillis;
+        // A timed-out read consumes nothing, so next() can simply be called again
+        clientSocket.setSoTimeout(Math.min(IDLE_POLL_MILLIS, timeout));
+        try {
+            long progress = requests.bytesRead();
+            long silentSince = System.currentTimeMillis();
+            while (true) {
+                try {
+                    return requests.next();
+                } catch (SocketTimeoutException e) {
+                    long now = System.currentTimeMillis();
+                    if (requests.bytesRead() != progress) {
+                        progress = requests.bytesRead();
+                        silentSince = now;
+                    }
+                    if (now - silentSince >= timeout || isServerStopped) {
+                        throw e;
+                    }
+                    if (queuedConnections.get() > 0 && !requests.hasPartialRequest()) {
+                        return null;
+                    }
+                }
+            }
+        } finally {
+            // A streamed body is read by the servlet with the full timeout
+            clientSocket.setSoTimeout(timeout);
+        }
+    }
+
+    /**
+     * Sets how long a connection may stay silent, both while a request is
+     * arriving and between requests on a persistent connection.
+     *
+     * @param millis The idle timeout in milliseconds.
+     */
+    public void setKeepAliveTimeout(int millis) {
+        this.keepAliveTimeoutMillis = millis;
+    }
+
+    /**
+     * Sets the size limits for incoming requests. Requests over a limit are
+     * answered with 431 or 413 and the connection is closed.
+     *
+     * @param maxHeaderBytes The largest accepted request line plus headers.
+     * @param maxBodyBytes The largest accepted body.
+     */
+    public void setRequestLimits(int maxHeaderBytes, long maxBodyBytes) {
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Sets the body size above which a request body is not buffered but
+     * handed to the servlet as {@link RequestParser.RequestInfo#getContentStream()},
+     * read straight from the connection.
+     *
+     * @param bytes The streaming threshold in bytes.
+     */
+    public void setStreamingThreshold(long bytes) {
+        this.streamingThreshold = bytes;
+    }
+
+    /**
+     * Sets how many requests one connection may carry before the server closes it.
+     *
+     * @param maxRequests The limit; 1 disables persistent connections.
+     */
+    public void setMaxRequestsPerConnection(int maxRequests) {
+        this.maxRequestsPerConnection = maxRequests;
     }
 
     /**
@@ -210,6 +379,9 @@ public class MyHTTPServer extends Thread implements HTTPServer {
      */
     public void close() {
         isServerStopped = true;
+        if (connectionLimit != null) {
+            interrupt(); // the accept loop may be waiting for a connection permit
+        }
         requestHandlerPool.shutdownNow();
     }
 
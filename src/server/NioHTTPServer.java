@@ -0,0 +1,334 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An HTTP server built on a single selector thread and non-blocking channels.
+ *
+ * The selector thread accepts connections and reads whatever bytes are ready
+ * into a per-connection {@link RequestFramer}. Only once a complete request
+ * (headers plus {@code Content-Length} body) is buffered is it handed to the
+ * servlet pool; the servlet's response is buffered and written back by the
+ * selector thread. No thread ever sleeps or waits on a slow client.
+ * Connections are persistent (see {@link ResponseFramer}) and pipelined
+ * requests are answered in order.
+ */
+public class NioHTTPServer extends Thread implements HTTPServer {
+
+    /** Servlets for GET,POST,DELETE requests. */
+    private final ServletRegistry servlets = new ServletRegistry();
+
+    /** Thread pool that runs servlets once a full request has been read. */
+    private final ExecutorService requestHandlerPool;
+
+    /** Responses produced by the pool, waiting to be attached by the selector thread. */
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+
+    /** Flag to indicate if the server should stop accepting requests. */
+    private volatile boolean isServerStopped = false;
+
+    /** Port number on which the server listens for incoming connections. */
+    private final int port;
+
+    /** How long a connection may stay silent while reading a request or between requests. */
+    private volatile int keepAliveTimeoutMillis = ResponseFramer.DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    /** Longest interval between two sweeps for idle connections. */
+    private static final long IDLE_SWEEP_MILLIS = 1000;
+
+    /** How many requests one connection may carry. */
+    private volatile int maxRequestsPerConnection = ResponseFramer.DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+
+    /** Bodies are buffered whole before dispatch, so the default cap is lower than for MyHTTPServer. */
+    public static final long DEFAULT_MAX_BODY_BYTES = 16L * 1024 * 1024;
+
+    /** Largest accepted request line plus headers, and largest accepted (buffered) body. */
+    private volatile int maxHeaderBytes = RequestFramer.DEFAULT_MAX_HEADER_BYTES;
+    private volatile long maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+
+    /**
+     * Constructs a new NIO HTTP server.
+     *
+     * @param port The port number for the server to listen on.
+     * @param threadCount The number of threads that run servlets.
+     */
+    public NioHTTPServer(int port, int threadCount) {
+        this.port = port;
+        this.requestHandlerPool = Executors.newFixedThreadPool(threadCount);
+    }
+
+    @Override
+    public void addServlet(String httpCommand, String uri, Servlet servlet) {
+        servlets.add(httpCommand, uri, servlet);
+    }
+
+    @Override
+    public void removeServlet(String httpCommand, String uri) {
+        servlets.remove(httpCommand, uri);
+    }
+
+    /**
+     * Sets how long a connection may stay silent, both while a request is
+     * arriving and between requests on a persistent connection.
+     *
+     * @param millis The idle timeout in milliseconds.
+     */
+    public void setKeepAliveTimeout(int millis) {
+        this.keepAliveTimeoutMillis = millis;
+    }
+
+    /**
+     * Sets how many requests one connection may carry before the server closes it.
+     *
+     * @param maxRequests The limit; 1 disables persistent connections.
+     */
+    public void setMaxRequestsPerConnection(int maxRequests) {
+        this.maxRequestsPerConnection = maxRequests;
+    }
+
+    /**
+     * Sets the size limits for incoming requests. Bodies are buffered in full
+     * before the servlet runs, so the body limit bounds memory per connection.
+     * Requests over a limit are answered with 431 or 413 and the connection is closed.
+     *
+     * @param maxHeaderBytes The largest accepted request line plus headers.
+     * @param maxBodyBytes The largest accepted body.
+     */
+    public void setRequestLimits(int maxHeaderBytes, long maxBodyBytes) {
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Runs the selector loop until {@link #close()} is called.
+     */
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.selector = selector;
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            long nextIdleSweep = 0;
+            while (!isServerStopped) {
+                long sweepInterval = Math.min(IDLE_SWEEP_MILLIS, Math.max(1, keepAliveTimeoutMillis / 4));
+                selector.select(sweepInterval);
+                registerPendingWrites();
+                // A sweep visits every key, so it runs on its own schedule rather than on every wakeup
+                long now = System.currentTimeMillis();
+                if (now >= nextIdleSweep) {
+                    closeIdleConnections(selector, now);
+                    nextIdleSweep = now + sweepInterval;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(serverChannel, selector);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        closeQuietly(key);
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        SocketChannel client = serverChannel.accept();
+        if (client == null) {
+            return;
+        }
+        client.configureBlocking(false);
+        SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(key, new RequestFramer(maxHeaderBytes, maxBodyBytes)));
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        connection.readBuffer.clear();
+        int n = channel.read(connection.readBuffer);
+        if (n < 0) {
+            closeQuietly(key);
+            return;
+        }
+        connection.readBuffer.flip();
+        connection.framer.append(connection.readBuffer);
+        connection.lastActive = System.currentTimeMillis();
+        submitNextRequest(key, connection);
+    }
+
+    /**
+     * Hands the next fully buffered request, if any, to the servlet pool.
+     * Requests on one connection are served one at a time so responses to
+     * pipelined requests go out in order.
+     */
+    private void submitNextRequest(SelectionKey key, Connection connection) throws IOException {
+        RequestParser.RequestInfo request;
+        try {
+            request = connection.framer.nextRequest();
+        } catch (RequestRejectedException e) {
+            // Answer and close without reading the rest of the request
+            connection.keepAlive = false;
+            connection.response = ByteBuffer.wrap(e.toResponse());
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        if (request != null) {
+            // Stop reading while the servlet runs; the selector resumes with the response
+            key.interestOps(0);
+            requestHandlerPool.submit(() -> handle(connection, request));
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void handle(Connection connection, RequestParser.RequestInfo requestInfo) {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        boolean keepAlive = false;
+        try {
+            if (requestInfo.getHttpCommand() != null) {
+                connection.served++;
+                keepAlive = ResponseFramer.wantsKeepAlive(requestInfo) && connection.served < maxRequestsPerConnection;
+                ResponseFramer framer = new ResponseFramer(response, requestInfo, keepAlive);
+                if (!servlets.supports(requestInfo.getHttpCommand())) {
+                    framer.write("HTTP/1.1 405 Method Not Allowed\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes());
+                } else {
+                    try {
+                        servlets.dispatch(requestInfo, framer);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        framer.fail();
+                    }
+                }
+                framer.finish();
+                keepAlive = framer.isKeepAlive();
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            keepAlive = false;
+        }
+        connection.keepAlive = keepAlive;
+        connection.response = ByteBuffer.wrap(response.toByteArray());
+        pendingWrites.add(connection);
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    private void registerPendingWrites() {
+        Connection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            if (connection.key.isValid()) {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        channel.write(connection.response);
+        if (connection.response.hasRemaining()) {
+            return;
+        }
+        connection.response = null;
+        connection.lastActive = System.currentTimeMillis();
+        if (connection.keepAlive) {
+            submitNextRequest(key, connection);
+        } else {
+            closeQuietly(key);
+        }
+    }
+
+    /** Closes connections that have been waiting for request bytes longer than the idle timeout. */
+    private void closeIdleConnections(Selector selector, long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (!(attachment instanceof Connection) || !key.isValid() || key.interestOps() != SelectionKey.OP_READ) {
+                continue;
+            }
+            if (now - ((Connection) attachment).lastActive > keepAliveTimeoutMillis) {
+                closeQuietly(key);
+            }
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    @Override
+    public void start() {
+        isServerStopped = false;
+        super.start();
+    }
+
+    /**
+     * Stops the selector loop and shuts down the servlet pool.
+     */
+    @Override
+    public void close() {
+        isServerStopped = true;
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+        requestHandlerPool.shutdownNow();
+    }
+
+    /** Per-connection state, attached to its selection key. */
+    private static final class Connection {
+        final SelectionKey key;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        final RequestFramer framer;
+        volatile ByteBuffer response;
+        volatile boolean keepAlive;
+        // Only touched by the one pool thread serving this connection at a time
+        int served;
+        long lastActive = System.currentTimeMillis();
+
+        Connection(SelectionKey key, RequestFramer framer) {
+            this.key = key;
+            this.framer = framer;
+        }
+    }
+}
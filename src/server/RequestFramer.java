@@ -0,0 +1,307 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import server.RequestParser.RequestInfo;
+
+/**
+ * Incremental, byte-level HTTP request decoder.
+ *
+ * Bytes from a connection are appended as they arrive and a small state
+ * machine cuts them into requests: in {@code HEAD} it scans for the blank
+ * line that ends the header block, then parses the request line and headers
+ * straight from the bytes; in {@code BODY} it waits for exactly
+ * {@code Content-Length} bytes. The body is handed to {@link RequestInfo} as a
+ * slice of the receive buffer, never rewritten or copied line by line, and
+ * when a request fills the buffer exactly the buffer itself is handed over.
+ * Bytes past the end of a request are kept for the next one (pipelining).
+ *
+ * Header and body sizes are bounded; a request over either limit is rejected
+ * with {@link RequestRejectedException} before its body is buffered.
+ */
+class RequestFramer {
+    static final int DEFAULT_MAX_HEADER_BYTES = 64 * 1024;
+    static final long DEFAULT_MAX_BODY_BYTES = 256L * 1024 * 1024;
+
+    private static final int INITIAL_CAPACITY = 4096;
+    // Largest body that can be buffered in one array
+    private static final long MAX_BUFFERED_BODY = Integer.MAX_VALUE - 1024;
+
+    private enum State { HEAD, BODY }
+
+    private final int maxHeaderBytes;
+    private final long maxBodyBytes;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    // Unconsumed bytes are buffer[start, size)
+    private int start = 0;
+    private int size = 0;
+
+    private State state = State.HEAD;
+    // Where the search for the end of the header block resumes
+    private int scanFrom = 0;
+    // Index just past the header block, valid in BODY
+    private int headerEnd;
+    private long contentLength;
+    private RequestInfo pending;
+
+    RequestFramer() {
+        this(DEFAULT_MAX_HEADER_BYTES, DEFAULT_MAX_BODY_BYTES);
+    }
+
+    RequestFramer(int maxHeaderBytes, long maxBodyBytes) {
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    void append(ByteBuffer src) {
+        int n = src.remaining();
+        ensureCapacity(n);
+        src.get(buffer, size, n);
+        size += n;
+    }
+
+    void append(byte[] src, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(src, off, buffer, size, len);
+        size += len;
+    }
+
+    /**
+     * Advances past the header block if it has fully arrived.
+     *
+     * @return true once the request line and headers of the next request are parsed.
+     * @throws RequestRejectedException If the headers or declared body are too large.
+     */
+    boolean headerComplete() throws IOException {
+        if (state == State.BODY) {
+            return true;
+        }
+        int end = findHeaderEnd();
+        if (end < 0) {
+            if (size - start > maxHeaderBytes) {
+                throw new RequestRejectedException(431, "Request Header Fields Too Large",
+                        "Request header exceeds " + maxHeaderBytes + " bytes");
+            }
+            return false;
+        }
+        if (end - start > maxHeaderBytes) {
+            throw new RequestRejectedException(431, "Request Header Fields Too Large",
+                    "Request header exceeds " + maxHeaderBytes + " bytes");
+        }
+        pending = RequestParser.parseHead(buffer, start, end);
+        if (pending.getHeader("Transfer-Encoding") != null) {
+            throw new RequestRejectedException(411, "Length Required", "Chunked request bodies are not supported");
+        }
+        contentLength = declaredContentLength(pending);
+        if (contentLength > maxBodyBytes) {
+            throw new RequestRejectedException(413, "Payload Too Large",
+                    "Request body of " + contentLength + " bytes exceeds " + maxBodyBytes);
+        }
+        headerEnd = end;
+        state = State.BODY;
+        return true;
+    }
+
+    /** @return the Content-Length of the request whose headers are parsed. */
+    long pendingContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the next request with its body fully buffered, or null if more input is needed.
+     * @throws RequestRejectedException If the request is over a limit or malformed.
+     */
+    RequestInfo nextRequest() throws IOException {
+        if (!headerComplete()) {
+            return null;
+        }
+        if (contentLength > MAX_BUFFERED_BODY) {
+            throw new RequestRejectedException(413, "Payload Too Large", "Request body too large to buffer");
+        }
+        int bodyLength = (int) contentLength;
+        if (size - headerEnd < bodyLength) {
+            // The buffer grows as body bytes arrive, not to the declared length up front
+            return null;
+        }
+        ByteBuffer body;
+        int requestEnd = headerEnd + bodyLength;
+        if (requestEnd == size && bodyLength >= INITIAL_CAPACITY) {
+            // The request is all that is buffered; hand over the array instead of copying the body
+            body = ByteBuffer.wrap(buffer, headerEnd, bodyLength).slice();
+            buffer = new byte[INITIAL_CAPACITY];
+            start = 0;
+            size = 0;
+        } else {
+            body = ByteBuffer.wrap(Arrays.copyOfRange(buffer, headerEnd, requestEnd));
+            start = requestEnd;
+        }
+        RequestInfo requestInfo = pending;
+        requestInfo.attachBody(body);
+        RequestParser.applyFormUpload(requestInfo);
+        resetState();
+        return requestInfo;
+    }
+
+    /**
+     * Returns the request whose headers are parsed with a body that is read
+     * from {@code source} as the servlet consumes it. Body bytes already
+     * buffered are served first, so nothing is lost.
+     */
+    RequestInfo takeStreaming(InputStream source) {
+        int buffered = (int) Math.min(size - headerEnd, contentLength);
+        byte[] prefix = Arrays.copyOfRange(buffer, headerEnd, headerEnd + buffered);
+        start = headerEnd + buffered;
+        RequestInfo requestInfo = pending;
+        requestInfo.attachBodyStream(new BodyStream(prefix, source, contentLength - buffered), contentLength);
+        resetState();
+        return requestInfo;
+    }
+
+    /** @return whatever is buffered, for a connection that ended mid-request. */
+    byte[] drain() {
+        byte[] rest = Arrays.copyOfRange(buffer, start, size);
+        start = 0;
+        size = 0;
+        resetState();
+        return rest;
+    }
+
+    /** @return true if part of a request is buffered. */
+    boolean hasPartialRequest() {
+        return size > start;
+    }
+
+    private void resetState() {
+        state = State.HEAD;
+        scanFrom = start;
+        pending = null;
+        contentLength = 0;
+    }
+
+    private static long declaredContentLength(RequestInfo requestInfo) throws IOException {
+        String value = requestInfo.getHeader("Content-Length");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            long length = Long.parseLong(value.trim());
+            if (length < 0) {
+                throw new RequestRejectedException(400, "Bad Request", "Negative Content-Length");
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new RequestRejectedException(400, "Bad Request", "Invalid Content-Length: " + value);
+        }
+    }
+
+    /** Index just past the blank line that ends the header block, or -1. */
+    private int findHeaderEnd() {
+        for (int i = Math.max(scanFrom, start); i < size; i++) {
+            if (buffer[i] != '\n') {
+                continue;
+            }
+            if (i - 1 >= start && buffer[i - 1] == '\n') {
+                return i + 1;
+            }
+            if (i - 3 >= start && buffer[i - 1] == '\r' && buffer[i - 2] == '\n' && buffer[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        scanFrom = Math.max(start, size - 3);
+        return -1;
+    }
+
+    /** Makes room for {@code extra} more bytes, first reclaiming consumed space. */
+    private void ensureCapacity(int extra) {
+        if (size + extra <= buffer.length) {
+            return;
+        }
+        compact();
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size + extra, buffer.length * 2));
+        }
+    }
+
+    private void compact() {
+        if (start == 0) {
+            return;
+        }
+        System.arraycopy(buffer, start, buffer, 0, size - start);
+        size -= start;
+        scanFrom = Math.max(0, scanFrom - start);
+        headerEnd -= start;
+        start = 0;
+    }
+
+    /**
+     * Request body read from the connection on demand, limited to the
+     * declared length so it never runs into the next request.
+     */
+    static final class BodyStream extends InputStream {
+        private final byte[] prefix;
+        private int prefixPos = 0;
+        private final InputStream source;
+        private long remaining;
+
+        BodyStream(byte[] prefix, InputStream source, long remaining) {
+            this.prefix = prefix;
+            this.source = source;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (prefixPos < prefix.length) {
+                int n = Math.min(len, prefix.length - prefixPos);
+                System.arraycopy(prefix, prefixPos, b, off, n);
+                prefixPos += n;
+                return n;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = source.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new IOException("Connection closed with " + remaining + " body bytes outstanding");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return prefix.length - prefixPos;
+        }
+
+        /** Skips whatever the servlet did not read, so the next request starts in the right place. */
+        void drain() throws IOException {
+            prefixPos = prefix.length;
+            byte[] skip = new byte[8192];
+            while (remaining > 0) {
+                int n = source.read(skip, 0, (int) Math.min(skip.length, remaining));
+                if (n == -1) {
+                    throw new IOException("Connection closed with " + remaining + " body bytes outstanding");
+                }
+                remaining -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            // The connection belongs to the server
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package server;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.*;
 import java.util.ArrayList;
@@ -27,10 +33,11 @@ public class RequestParser {
     public static RequestInfo parseRequest(BufferedReader reader) throws IOException {
         String line;
         String httpCommand = null;
+        String httpVersion = "HTTP/1.0";
         String uri = null;
-        String uriNew = null;
         String[] uriSegments = null;
         Map<String, String> parameters = new HashMap<>();
+        Map<String, String> headers = new HashMap<>();
         byte[] content = null;
         int contentLength = 0;
 
@@ -41,32 +48,11 @@ public class RequestParser {
             if (requestLineParts.length >= 2) {
                 httpCommand = requestLineParts[0]; // HTTP method (e.g., GET, POST)
                 uri = requestLineParts[1]; // Request URI
-
-                // Parse URI and query parameters if present
-                int queryIndex = uri.indexOf("?");
-                if (queryIndex != -1) {
-                    String queryString = uri.substring(queryIndex + 1); // Extract query string
-                    uriNew = uri.substring(0, queryIndex); // Extract URI without query string
-                    String[] paramPairs = queryString.split("&"); // Split query string into key-value pairs
-                    for (String pair : paramPairs) {
-                        String[] keyValue = pair.split("=");
-                        if (keyValue.length == 2) {
-                            parameters.put(keyValue[0], keyValue[1]); // Add parameters to map
-                        }
-                    }
-                } else {
-                    uriNew = uri; // No query parameters, use full URI
+                if (requestLineParts.length >= 3) {
+                    httpVersion = requestLineParts[2]; // Protocol version (e.g., HTTP/1.1)
                 }
 
-                // Split URI into segments and filter out empty segments
-                String[] rawSegments = uriNew.split("/");
-                List<String> filteredSegments = new ArrayList<>();
-                for (String segment : rawSegments) {
-                    if (!segment.isEmpty()) {
-                        filteredSegments.add(segment); // Add non-empty segments to the list
-                    }
-                }
-                uriSegments = filteredSegments.toArray(new String[0]); // Convert list to array
+                uriSegments = parseUri(uri, parameters);
             }
         }
 
@@ -84,22 +70,93 @@ public class RequestParser {
                 contentBuilder.append(line).append("\n"); // Collect content lines
             } else {
                 // Parse headers
-                String[] headerParts = line.split(": ");
-                if (headerParts.length == 2) {
-                    if (headerParts[0].equalsIgnoreCase("Content-Length")) {
-                        contentLength = Integer.parseInt(headerParts[1]); // Get content length
-                    } else if (headerParts[0].equalsIgnoreCase("filename")) {
-                        parameters.put("filename", headerParts[1]); // Get filename from headers
-                    }
+                parseHeaderLine(line, headers, parameters);
+            }
+        }
+        contentLength = (int) parseContentLength(headers);
+
+        // Process content and filename if available
+        content = extractContent(contentBuilder.toString(), contentLength, parameters);
+
+        // Return the parsed request information
+        return new RequestInfo(httpCommand, uri, uriSegments, parameters, content, httpVersion, headers);
+    }
+
+    /**
+     * Splits a request URI into its path segments and adds its query parameters to the map.
+     *
+     * @param uri The request URI, possibly with a query string.
+     * @param parameters The map query parameters are added to.
+     * @return The non-empty path segments.
+     */
+    static String[] parseUri(String uri, Map<String, String> parameters) {
+        // Parse URI and query parameters if present
+        String path;
+        int queryIndex = uri.indexOf("?");
+        if (queryIndex != -1) {
+            String queryString = uri.substring(queryIndex + 1); // Extract query string
+            path = uri.substring(0, queryIndex); // Extract URI without query string
+            String[] paramPairs = queryString.split("&"); // Split query string into key-value pairs
+            for (String pair : paramPairs) {
+                String[] keyValue = pair.split("=");
+                if (keyValue.length == 2) {
+                    parameters.put(keyValue[0], keyValue[1]); // Add parameters to map
                 }
             }
+        } else {
+            path = uri; // No query parameters, use full URI
         }
 
-        BufferedReader copyReader = new BufferedReader(reader);
+        // Split URI into segments and filter out empty segments
+        String[] rawSegments = path.split("/");
+        List<String> filteredSegments = new ArrayList<>();
+        for (String segment : rawSegments) {
+            if (!segment.isEmpty()) {
+                filteredSegments.add(segment); // Add non-empty segments to the list
+            }
+        }
+        return filteredSegments.toArray(new String[0]); // Convert list to array
+    }
 
-        // Process content and filename if available
-        if (contentLength > 0 && contentBuilder.length() > 0) {
-            String contentString = contentBuilder.toString();
+    /**
+     * Adds one header line to the header map; a {@code filename} header is also kept as a parameter.
+     */
+    static void parseHeaderLine(String line, Map<String, String> headers, Map<String, String> parameters) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        String name = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        headers.put(name.toLowerCase(), value);
+        if (name.equalsIgnoreCase("filename")) {
+            parameters.put("filename", value); // Get filename from headers
+        }
+    }
+
+    /**
+     * @return the Content-Length header, or 0 if it is absent or not a number.
+     */
+    static long parseContentLength(Map<String, String> headers) {
+        String value = headers.get("content-length");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Finds an uploaded file inside a form body by its {@code filename="..."}
+     * marker and returns its content, recording {@code filename} and
+     * {@code fileContent} parameters. Bodies without a file are returned whole.
+     */
+    static byte[] extractContent(String contentString, long contentLength, Map<String, String> parameters) {
+        byte[] content = null;
+        if (contentLength > 0 && contentString.length() > 0) {
             int filenameIndex = contentString.indexOf("filename=\"");
             if (filenameIndex != -1) {
                 int start = filenameIndex + "filename=\"".length();
@@ -138,11 +195,9 @@ public class RequestParser {
                 content = contentString.getBytes(); // No filename, use entire content
             }
         } else {
-            content = contentBuilder.toString().getBytes(); // Default case: convert content to bytes
+            content = contentString.getBytes(); // Default case: convert content to bytes
         }
-
-        // Return the parsed request information
-        return new RequestInfo(httpCommand, uri, uriSegments, parameters, content);
+        return content;
     }
 
     /**
@@ -154,7 +209,12 @@ public class RequestParser {
         private final String uri; // Request URI
         private final String[] uriSegments; // Segments of the URI
         private final Map<String, String> parameters; // Query parameters and headers
-        private final byte[] content; // Content of the request
+        private byte[] content; // Content of the request, materialized from the body on first use
+        private ByteBuffer body; // Body bytes in place in the receive buffer
+        private InputStream bodyStream; // Body still on the wire, for large uploads
+        private long contentLength; // Body length as declared by Content-Length
+        private final String httpVersion; // Protocol version (e.g., HTTP/1.1)
+        private final Map<String, String> headers; // Header names in lower case
 
         /**
          * Constructs a RequestInfo object with the specified details.
@@ -166,11 +226,58 @@ public class RequestParser {
          * @param content The content of the request.
          */
         public RequestInfo(String httpCommand, String uri, String[] uriSegments, Map<String, String> parameters, byte[] content) {
+            this(httpCommand, uri, uriSegments, parameters, content, "HTTP/1.0", new HashMap<>());
+        }
+
+        /**
+         * Constructs a RequestInfo object including the protocol version and headers.
+         *
+         * @param httpCommand The HTTP command.
+         * @param uri The URI of the request.
+         * @param uriSegments The segments of the URI.
+         * @param parameters The parameters extracted from the request.
+         * @param content The content of the request.
+         * @param httpVersion The protocol version from the request line.
+         * @param headers The request headers, keyed by lower-case name.
+         */
+        public RequestInfo(String httpCommand, String uri, String[] uriSegments, Map<String, String> parameters, byte[] content,
+                           String httpVersion, Map<String, String> headers) {
             this.httpCommand = httpCommand;
             this.uri = uri;
             this.uriSegments = uriSegments;
             this.parameters = parameters;
             this.content = content;
+            this.httpVersion = httpVersion;
+            this.headers = headers;
+            this.contentLength = content == null ? 0 : content.length;
+        }
+
+        /** Attaches a body that is fully buffered; it is not copied until {@link #getContent()} is called. */
+        void attachBody(ByteBuffer body) {
+            this.body = body;
+            this.content = null;
+            this.contentLength = body.remaining();
+        }
+
+        /** Attaches a body that the servlet reads straight from the connection. */
+        void attachBodyStream(InputStream bodyStream, long contentLength) {
+            this.bodyStream = bodyStream;
+            this.content = null;
+            this.contentLength = contentLength;
+        }
+
+        /**
+         * Replaces the content with an extracted part of the body (e.g., an
+         * uploaded file), held in place like a buffered body.
+         */
+        void setContent(ByteBuffer part) {
+            this.body = part;
+            this.content = null;
+        }
+
+        /** @return true if the body is fully in memory rather than still on the wire. */
+        boolean isBodyBuffered() {
+            return bodyStream == null;
         }
 
         /**
@@ -212,12 +319,136 @@ public class RequestParser {
         /**
          * Gets the content of the request as a byte array.
          *
+         * For a large body that is streamed from the connection this reads the
+         * whole stream into memory; prefer {@link #getContentStream()} there.
+         *
          * @return The request content.
          */
         public byte[] getContent() {
+            if (content == null) {
+                if (body != null) {
+                    ByteBuffer b = body.duplicate();
+                    content = new byte[b.remaining()];
+                    b.get(content);
+                } else if (bodyStream != null) {
+                    try {
+                        content = readFully(bodyStream, contentLength);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not read request body", e);
+                    }
+                }
+            }
             return content;
         }
 
+        /**
+         * Gets the body as a read-only buffer without copying it. A streamed
+         * body is read into memory first.
+         *
+         * @return The request body.
+         */
+        public ByteBuffer getContentBuffer() {
+            if (body != null && content == null) {
+                return body.asReadOnlyBuffer();
+            }
+            byte[] c = getContent();
+            return ByteBuffer.wrap(c == null ? new byte[0] : c).asReadOnlyBuffer();
+        }
+
+        /**
+         * Gets the body as a stream. For large uploads this reads directly from
+         * the connection, so it can only be consumed once, during
+         * {@link Servlet#handle}.
+         *
+         * @return The request body stream.
+         */
+        public InputStream getContentStream() {
+            if (bodyStream != null && content == null) {
+                return bodyStream;
+            }
+            if (body != null && content == null && body.hasArray()) {
+                return new ByteArrayInputStream(body.array(), body.arrayOffset() + body.position(), body.remaining());
+            }
+            byte[] c = getContent();
+            return new ByteArrayInputStream(c == null ? new byte[0] : c);
+        }
+
+        /**
+         * Gets a streaming reader over the parts of a {@code multipart/form-data}
+         * body. Each call starts from the beginning of a buffered body; a
+         * streamed body can only be walked once.
+         *
+         * @return The parts, or null if the request is not multipart.
+         */
+        public MultipartStream getParts() {
+            String boundary = MultipartStream.boundaryOf(getHeader("Content-Type"));
+            if (boundary == null) {
+                return null;
+            }
+            InputStream in;
+            if (bodyStream != null) {
+                in = bodyStream;
+            } else if (body != null) {
+                in = new ByteArrayInputStream(body.array(), body.arrayOffset() + body.position(), body.remaining());
+            } else {
+                in = new ByteArrayInputStream(content == null ? new byte[0] : content);
+            }
+            return new MultipartStream(in, boundary);
+        }
+
+        /**
+         * Gets the body length declared by the request.
+         *
+         * @return The body length in bytes.
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * Gets the protocol version from the request line (e.g., HTTP/1.1).
+         *
+         * @return The protocol version.
+         */
+        public String getHttpVersion() {
+            return httpVersion;
+        }
+
+        /**
+         * Gets the request headers, keyed by lower-case header name.
+         *
+         * @return A map of headers.
+         */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Gets a header value, ignoring the case of its name.
+         *
+         * @param name The header name.
+         * @return The header value, or null if absent.
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        private static byte[] readFully(InputStream in, long length) throws IOException {
+            if (length > Integer.MAX_VALUE - 1024) {
+                throw new IOException("Request body too large to hold in memory: " + length + " bytes");
+            }
+            byte[] data = new byte[(int) length];
+            int off = 0;
+            while (off < data.length) {
+                int n = in.read(data, off, data.length - off);
+                if (n == -1) {
+                    return Arrays.copyOf(data, off);
+                }
+                off += n;
+            }
+            return data;
+        }
+
         /**
          * Prints the details of the request for debugging purposes.
          * This includes the HTTP command, URI, URI segments, parameters, and content.
@@ -235,7 +466,218 @@ public class RequestParser {
             }
             if (content != null) {
                 System.out.println("Content: " + new String(content));
+            } else if (contentLength > 0) {
+                System.out.println("Content: " + contentLength + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Reads consecutive requests from one connection. Each call to
+     * {@link #next()} returns exactly one request; bytes of a following
+     * (pipelined) request that arrived in the same read are kept for the next call.
+     *
+     * Bodies up to the streaming threshold are buffered; larger ones are
+     * left on the connection and exposed through
+     * {@link RequestInfo#getContentStream()}, so memory stays bounded
+     * regardless of upload size. Whatever the servlet leaves unread is
+     * skipped before the next request is parsed.
+     */
+    public static class RequestStream {
+        /** Bodies above this size are streamed instead of buffered. */
+        public static final int DEFAULT_STREAMING_THRESHOLD = 1024 * 1024;
+
+        private final InputStream in;
+        private final RequestFramer framer;
+        private final long streamingThreshold;
+        private final byte[] buffer = new byte[8192];
+        private RequestFramer.BodyStream openBody;
+        private long bytesRead;
+
+        public RequestStream(InputStream in) {
+            this(in, RequestFramer.DEFAULT_MAX_HEADER_BYTES, RequestFramer.DEFAULT_MAX_BODY_BYTES, DEFAULT_STREAMING_THRESHOLD);
+        }
+
+        /**
+         * @param in The connection's input stream.
+         * @param maxHeaderBytes The largest accepted request line plus headers.
+         * @param maxBodyBytes The largest accepted body.
+         * @param streamingThreshold Bodies larger than this are streamed rather than buffered.
+         */
+        public RequestStream(InputStream in, int maxHeaderBytes, long maxBodyBytes, long streamingThreshold) {
+            this.in = in;
+            this.framer = new RequestFramer(maxHeaderBytes, maxBodyBytes);
+            this.streamingThreshold = streamingThreshold;
+        }
+
+        /**
+         * Blocks until the next request has arrived (its whole body, unless it is streamed).
+         *
+         * @return The parsed request, or null if the peer closed the connection between requests.
+         * @throws RequestRejectedException If the request is over a limit or malformed.
+         * @throws IOException If an I/O error occurs or the read times out.
+         */
+        public RequestInfo next() throws IOException {
+            if (openBody != null) {
+                openBody.drain();
+                openBody = null;
+            }
+            while (!framer.headerComplete()) {
+                if (!fill()) {
+                    return endOfStream();
+                }
+            }
+            if (framer.pendingContentLength() > streamingThreshold) {
+                RequestInfo requestInfo = framer.takeStreaming(in);
+                openBody = (RequestFramer.BodyStream) requestInfo.getContentStream();
+                return requestInfo;
+            }
+            RequestInfo requestInfo;
+            while ((requestInfo = framer.nextRequest()) == null) {
+                if (!fill()) {
+                    return endOfStream();
+                }
+            }
+            return requestInfo;
+        }
+
+        private boolean fill() throws IOException {
+            int bytesRead = in.read(buffer);
+            if (bytesRead == -1) {
+                return false;
+            }
+            framer.append(buffer, 0, bytesRead);
+            this.bytesRead += bytesRead;
+            return true;
+        }
+
+        /**
+         * @return the bytes read from the connection so far, so a caller polling
+         *         {@link #next()} with a short read timeout can tell silence from progress.
+         */
+        public long bytesRead() {
+            return bytesRead;
+        }
+
+        /** @return true if part of a request has arrived but not all of it. */
+        public boolean hasPartialRequest() {
+            return framer.hasPartialRequest();
+        }
+
+        private RequestInfo endOfStream() throws IOException {
+            if (!framer.hasPartialRequest()) {
+                return null;
+            }
+            // Peer closed mid-request; parse whatever arrived
+            return parseRequest(framer.drain());
+        }
+    }
+
+    /**
+     * Parses one complete request held in a byte array. The body is exactly
+     * the bytes after the header block (no line-ending rewriting) and is not
+     * copied.
+     *
+     * @param request The raw request bytes.
+     * @return A RequestInfo object containing the parsed request information.
+     * @throws IOException If the header block is incomplete.
+     */
+    public static RequestInfo parseRequest(byte[] request) throws IOException {
+        RequestFramer framer = new RequestFramer(request.length + 1, request.length);
+        framer.append(request, 0, request.length);
+        RequestInfo requestInfo;
+        try {
+            requestInfo = framer.nextRequest();
+        } catch (RequestRejectedException e) {
+            // Truncated body or bad Content-Length; fall back to the headers alone
+            requestInfo = null;
+        }
+        if (requestInfo == null) {
+            // No blank line after the headers; treat everything as the header block
+            requestInfo = parseHead(request, 0, request.length);
+            requestInfo.attachBody(ByteBuffer.wrap(request, request.length, 0).slice());
+        }
+        return requestInfo;
+    }
+
+    /**
+     * Parses the request line and headers from {@code buf[from, to)}. The
+     * caller attaches the body.
+     */
+    static RequestInfo parseHead(byte[] buf, int from, int to) {
+        String httpCommand = null;
+        String httpVersion = "HTTP/1.0";
+        String uri = null;
+        String[] uriSegments = null;
+        Map<String, String> parameters = new HashMap<>();
+        Map<String, String> headers = new HashMap<>();
+
+        boolean firstLine = true;
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = lineStart;
+            while (lineEnd < to && buf[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int contentEnd = lineEnd > lineStart && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd == lineStart && !firstLine) {
+                break; // blank line ends the header block
+            }
+            String line = new String(buf, lineStart, contentEnd - lineStart, StandardCharsets.ISO_8859_1);
+            if (firstLine) {
+                // Request line (e.g., "GET /path?query=value HTTP/1.1")
+                String[] requestLineParts = line.split(" ");
+                if (requestLineParts.length >= 2) {
+                    httpCommand = requestLineParts[0];
+                    uri = requestLineParts[1];
+                    if (requestLineParts.length >= 3) {
+                        httpVersion = requestLineParts[2];
+                    }
+                    uriSegments = parseUri(uri, parameters);
+                }
+                firstLine = false;
+            } else {
+                parseHeaderLine(line, headers, parameters);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return new RequestInfo(httpCommand, uri, uriSegments, parameters, null, httpVersion, headers);
+    }
+
+    /**
+     * For a fully buffered multipart body, makes the first uploaded file the
+     * request content and records its {@code filename} (quoted) and
+     * {@code fileContent} parameters, as servlets expect. Streamed bodies are
+     * left alone; read those with {@link RequestInfo#getParts()}.
+     */
+    static void applyFormUpload(RequestInfo requestInfo) {
+        if (!requestInfo.isBodyBuffered()) {
+            return;
+        }
+        MultipartStream parts = requestInfo.getParts();
+        if (parts == null) {
+            return;
+        }
+        try {
+            MultipartStream.Part part;
+            while ((part = parts.nextPart()) != null) {
+                if (part.getFilename() != null) {
+                    // A part of a buffered body is never larger than the body, so one array holds it
+                    byte[] file = new byte[(int) requestInfo.getContentLength()];
+                    int length = 0;
+                    InputStream in = part.getInputStream();
+                    int n;
+                    while (length < file.length && (n = in.read(file, length, file.length - length)) != -1) {
+                        length += n;
+                    }
+                    requestInfo.getParameters().put("filename", "\"" + part.getFilename() + "\"");
+                    requestInfo.getParameters().put("fileContent", new String(file, 0, length));
+                    requestInfo.setContent(ByteBuffer.wrap(file, 0, length).slice());
+                    return;
+                }
             }
+        } catch (IOException e) {
+            // Malformed multipart body; leave the raw body as the content
         }
     }
-}
\ No newline at end of file
+}
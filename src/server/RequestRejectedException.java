@@ -0,0 +1,31 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request cannot be accepted, e.g. because its headers or body
+ * exceed the configured limits. Carries the HTTP status to answer with.
+ */
+public class RequestRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final String reason;
+
+    public RequestRejectedException(int statusCode, String reason, String message) {
+        super(message);
+        this.statusCode = statusCode;
+        this.reason = reason;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return a complete response that tells the client why, closing the connection.
+     */
+    public byte[] toResponse() {
+        return ("HTTP/1.1 " + statusCode + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes();
+    }
+}
@@ -0,0 +1,251 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import server.RequestParser.RequestInfo;
+
+/**
+ * The stream a servlet writes its response to on a persistent connection.
+ *
+ * Only the header block is buffered. Once it is complete the framer makes
+ * sure the client can tell where the body ends: a response with
+ * {@code Content-Length} or {@code Transfer-Encoding} passes through as is,
+ * otherwise the body is sent with chunked encoding (HTTP/1.1) or the
+ * connection is closed after it (HTTP/1.0). A {@code Connection} header that
+ * matches the server's decision is added. If the servlet writes nothing, an
+ * empty 404 is sent; if it throws, see {@link #fail()}.
+ */
+class ResponseFramer extends OutputStream {
+    /** How long a persistent connection may sit idle between requests. */
+    static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 5_000;
+    /** How many requests one connection may carry before the server closes it. */
+    static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private enum State { HEAD, IDENTITY, CHUNKED, RAW }
+
+    private final OutputStream out;
+    private final boolean http11;
+    private final HeadBuffer head = new HeadBuffer();
+    private State state = State.HEAD;
+    private boolean keepAlive;
+    private boolean finished = false;
+
+    /**
+     * @param out The connection's output stream.
+     * @param request The request being answered.
+     * @param keepAlive Whether the server wants to keep the connection open after this response.
+     */
+    ResponseFramer(OutputStream out, RequestInfo request, boolean keepAlive) {
+        this.out = out;
+        this.http11 = "HTTP/1.1".equals(request.getHttpVersion());
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @return true if the client asked for (or, in HTTP/1.1, did not refuse) a persistent connection.
+     */
+    static boolean wantsKeepAlive(RequestInfo request) {
+        String connection = request.getHeader("Connection");
+        if ("HTTP/1.1".equals(request.getHttpVersion())) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+
+    /**
+     * @return whether the connection may carry another request; only final after {@link #finish()}.
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (state != State.HEAD) {
+            writeBody(b, off, len);
+            return;
+        }
+        int start = head.size();
+        head.write(b, off, len);
+        // Only the new bytes, plus the 3 before them that may begin the blank line, are scanned
+        int end = findHeaderEnd(head.array(), Math.max(0, start - 3), head.size());
+        if (end < 0) {
+            if (head.size() > MAX_HEADER_BYTES) {
+                flushRaw();
+            }
+            return;
+        }
+        byte[] buffered = head.array();
+        int length = head.size();
+        writeHead(new String(buffered, 0, end, StandardCharsets.ISO_8859_1));
+        if (length > end) {
+            writeBody(buffered, end, length - end);
+        }
+        head.reset();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (state != State.HEAD) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Completes the response. Must be called once the servlet returns; the
+     * servlet closing this stream does not close the connection.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (state == State.HEAD) {
+            if (head.size() == 0) {
+                writeHead("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+            } else {
+                flushRaw();
+            }
+        } else if (state == State.CHUNKED) {
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        out.flush();
+    }
+
+    /**
+     * Ends the response of a servlet that threw: an empty 500 if no header
+     * block went out yet, otherwise the body is cut short. The connection is
+     * closed either way, since the client cannot trust what it received.
+     */
+    void fail() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        keepAlive = false;
+        if (state == State.HEAD) {
+            head.reset();
+            writeHead("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n");
+        }
+        // No terminating chunk: a chunked body that just stops tells the client it is incomplete
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The connection outlives the response; see finish()
+        flush();
+    }
+
+    private void writeHead(String block) throws IOException {
+        String[] lines = block.split("\r?\n");
+        if (lines.length == 0 || !lines[0].startsWith("HTTP/")) {
+            // Not a status line; we cannot frame this, so send it untouched and close afterwards
+            state = State.RAW;
+            keepAlive = false;
+            out.write(block.getBytes(StandardCharsets.ISO_8859_1));
+            return;
+        }
+        StringBuilder sb = new StringBuilder(block.length() + 64);
+        sb.append(lines[0]).append("\r\n");
+        boolean hasLength = false;
+        boolean chunked = false;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.isEmpty()) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            String name = colon > 0 ? line.substring(0, colon).trim() : "";
+            if (name.equalsIgnoreCase("Connection")) {
+                if (line.substring(colon + 1).trim().equalsIgnoreCase("close")) {
+                    keepAlive = false;
+                }
+                continue; // rewritten below
+            }
+            if (name.equalsIgnoreCase("Content-Length")) {
+                hasLength = true;
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = true;
+            }
+            sb.append(line).append("\r\n");
+        }
+        if (hasLength || chunked || !hasBody(lines[0])) {
+            state = State.IDENTITY;
+        } else if (keepAlive && http11) {
+            sb.append("Transfer-Encoding: chunked\r\n");
+            state = State.CHUNKED;
+        } else {
+            // Body ends when the connection does
+            keepAlive = false;
+            state = State.IDENTITY;
+        }
+        sb.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        sb.append("\r\n");
+        out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /** 1xx, 204 and 304 responses never carry a body, so they need no framing. */
+    private static boolean hasBody(String statusLine) {
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2) {
+            return true;
+        }
+        String code = parts[1];
+        return !(code.startsWith("1") || code.equals("204") || code.equals("304"));
+    }
+
+    private void writeBody(byte[] b, int off, int len) throws IOException {
+        if (state == State.CHUNKED) {
+            out.write(Integer.toHexString(len).getBytes(StandardCharsets.ISO_8859_1));
+            out.write(CRLF);
+            out.write(b, off, len);
+            out.write(CRLF);
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
+    private void flushRaw() throws IOException {
+        state = State.RAW;
+        keepAlive = false;
+        head.writeTo(out);
+        head.reset();
+    }
+
+    private static int findHeaderEnd(byte[] buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            if (i >= 1 && buf[i - 1] == '\n') {
+                return i + 1;
+            }
+            if (i >= 3 && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /** The header block so far, readable in place instead of copied on every write. */
+    private static final class HeadBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import server.RequestParser.RequestInfo;
+
+/**
+ * Servlets registered per HTTP command, shared by the {@link HTTPServer}
+ * implementations. Requests go to the servlet with the longest URI prefix
+ * match, compared segment by segment (see {@link ServletRouter}).
+ */
+class ServletRegistry {
+
+    /** Routers for GET,POST,DELETE requests. */
+    private final ServletRouter getServlets = new ServletRouter();
+    private final ServletRouter postServlets = new ServletRouter();
+    private final ServletRouter deleteServlets = new ServletRouter();
+
+    void add(String httpCommand, String uri, Servlet servlet) {
+        if (uri == null || servlet == null) {
+            return;
+        }
+        ServletRouter router = routerFor(httpCommand.toUpperCase());
+        if (router != null) {
+            router.put(uri, servlet);
+        }
+    }
+
+    void remove(String httpCommand, String uri) {
+        if (uri == null) {
+            return;
+        }
+        ServletRouter router = routerFor(httpCommand.toUpperCase());
+        if (router != null) {
+            router.remove(uri);
+        }
+    }
+
+    /**
+     * Finds the servlet for a request. Path parameters captured by a
+     * {@code {name}} segment of the matching route are added to the
+     * request's parameters.
+     *
+     * @return The matching servlet, or null if none matches.
+     * @throws IllegalArgumentException If the HTTP command is not supported.
+     */
+    Servlet find(RequestInfo requestInfo) {
+        ServletRouter router = routerFor(requestInfo.getHttpCommand());
+        if (router == null) {
+            throw new IllegalArgumentException("Unsupported HTTP command: " + requestInfo.getHttpCommand());
+        }
+
+        ServletRouter.Match match = router.find(requestInfo.getUriSegments());
+        if (match == null) {
+            return null;
+        }
+        if (!match.pathParameters.isEmpty() && requestInfo.getParameters() != null) {
+            requestInfo.getParameters().putAll(match.pathParameters);
+        }
+        return match.servlet;
+    }
+
+    /** @return whether servlets can be registered for this HTTP command at all. */
+    boolean supports(String httpCommand) {
+        return routerFor(httpCommand) != null;
+    }
+
+    /**
+     * Hands a parsed request to its servlet.
+     *
+     * @return true if a servlet handled the request.
+     */
+    boolean dispatch(RequestInfo requestInfo, OutputStream toClient) throws IOException {
+        Servlet servlet = find(requestInfo);
+        if (servlet == null) {
+            return false;
+        }
+        servlet.handle(requestInfo, toClient);
+        return true;
+    }
+
+    private ServletRouter routerFor(String httpCommand) {
+        if (httpCommand == null) {
+            return null;
+        }
+        switch (httpCommand) {
+            case "GET":
+                return getServlets;
+            case "POST":
+                return postServlets;
+            case "DELETE":
+                return deleteServlets;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package server;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Routes URIs to servlets through a trie keyed by path segment.
+ *
+ * A lookup walks the request's {@link RequestParser.RequestInfo#getUriSegments()}
+ * once and returns the servlet registered at the deepest matching node, so
+ * "/api" also serves "/api/topics/A" unless something more specific is
+ * registered. A segment written as {@code {name}} matches any single segment
+ * and captures it; literal segments win over parameters, and a parameter is
+ * only tried when the literal subtree holds no match for the rest of the
+ * path. Subtrees found to hold no match are remembered for the rest of the
+ * lookup, so no (node, depth) pair is searched twice.
+ *
+ * The trie is immutable: an update builds new nodes along the changed path
+ * and swaps the root atomically, so lookups never lock and always see either
+ * the whole update or none of it.
+ */
+class ServletRouter {
+
+    /** A lookup result: the servlet plus any captured path parameters. */
+    static final class Match {
+        final Servlet servlet;
+        final Map<String, String> pathParameters;
+
+        Match(Servlet servlet, Map<String, String> pathParameters) {
+            this.servlet = servlet;
+            this.pathParameters = pathParameters;
+        }
+    }
+
+    private static final class Node {
+        static final Node EMPTY = new Node(null, Collections.<String, Node>emptyMap(), null, null);
+
+        final Servlet servlet;
+        final Map<String, Node> children;
+        final Node paramChild;
+        final String paramName;
+
+        Node(Servlet servlet, Map<String, Node> children, Node paramChild, String paramName) {
+            this.servlet = servlet;
+            this.children = children;
+            this.paramChild = paramChild;
+            this.paramName = paramName;
+        }
+
+        boolean isEmpty() {
+            return servlet == null && children.isEmpty() && paramChild == null;
+        }
+    }
+
+    private final AtomicReference<Node> root = new AtomicReference<>(Node.EMPTY);
+
+    /**
+     * Registers a servlet, replacing any servlet at the same path.
+     *
+     * @throws IllegalArgumentException If the path names a parameter differently
+     *                                  from an existing route at the same position.
+     */
+    synchronized void put(String uri, Servlet servlet) {
+        root.set(insert(root.get(), segmentsOf(uri), 0, servlet));
+    }
+
+    synchronized void remove(String uri) {
+        Node updated = delete(root.get(), segmentsOf(uri), 0);
+        root.set(updated == null ? Node.EMPTY : updated);
+    }
+
+    /**
+     * @return the servlet for the longest registered prefix of the path, or null.
+     */
+    Match find(String[] segments) {
+        Node node = root.get();
+        Match best = node.servlet == null ? null : new Match(node.servlet, Collections.<String, String>emptyMap());
+        return new Search(segments == null ? new String[0] : segments).search(node, 0, best);
+    }
+
+    /** The state of one lookup. */
+    private static final class Search {
+        final String[] segments;
+        final Map<String, String> params = new HashMap<>();
+        // Depths at which a node's subtree was searched and matched nothing; created on the first dead end
+        IdentityHashMap<Node, BitSet> deadEnds;
+
+        Search(String[] segments) {
+            this.segments = segments;
+        }
+
+        /** @return the deepest match below {@code node}, or {@code best} itself if there is none. */
+        Match search(Node node, int depth, Match best) {
+            if (depth == segments.length || isDeadEnd(node, depth)) {
+                return best;
+            }
+            String segment = segments[depth];
+
+            Node literal = node.children.get(segment);
+            if (literal != null) {
+                Match candidate = literal.servlet == null ? best : new Match(literal.servlet, new HashMap<>(params));
+                Match found = search(literal, depth + 1, candidate);
+                if (found != best || node.paramChild == null) {
+                    return found;
+                }
+            }
+
+            Node param = node.paramChild;
+            if (param != null) {
+                params.put(node.paramName, segment);
+                Match candidate = param.servlet == null ? best : new Match(param.servlet, new HashMap<>(params));
+                Match found = search(param, depth + 1, candidate);
+                params.remove(node.paramName);
+                if (found != best) {
+                    return found;
+                }
+            }
+            if (literal != null && param != null) {
+                // Only a node that branched can be reached again through another branch
+                markDeadEnd(node, depth);
+            }
+            return best;
+        }
+
+        private boolean isDeadEnd(Node node, int depth) {
+            if (deadEnds == null) {
+                return false;
+            }
+            BitSet depths = deadEnds.get(node);
+            return depths != null && depths.get(depth);
+        }
+
+        private void markDeadEnd(Node node, int depth) {
+            if (deadEnds == null) {
+                deadEnds = new IdentityHashMap<>();
+            }
+            deadEnds.computeIfAbsent(node, n -> new BitSet()).set(depth);
+        }
+    }
+
+    private static Node insert(Node node, List<String> segments, int depth, Servlet servlet) {
+        if (depth == segments.size()) {
+            return new Node(servlet, node.children, node.paramChild, node.paramName);
+        }
+        String segment = segments.get(depth);
+        String paramName = parameterName(segment);
+        if (paramName != null) {
+            if (node.paramName != null && !node.paramName.equals(paramName)) {
+                throw new IllegalArgumentException("Path parameter {" + paramName + "} conflicts with {"
+                        + node.paramName + "} at the same position");
+            }
+            Node child = node.paramChild == null ? Node.EMPTY : node.paramChild;
+            return new Node(node.servlet, node.children, insert(child, segments, depth + 1, servlet), paramName);
+        }
+        Node child = node.children.getOrDefault(segment, Node.EMPTY);
+        Map<String, Node> children = new HashMap<>(node.children);
+        children.put(segment, insert(child, segments, depth + 1, servlet));
+        return new Node(node.servlet, Collections.unmodifiableMap(children), node.paramChild, node.paramName);
+    }
+
+    /** @return the updated node, or null if it no longer holds anything. */
+    private static Node delete(Node node, List<String> segments, int depth) {
+        Node updated;
+        if (depth == segments.size()) {
+            updated = new Node(null, node.children, node.paramChild, node.paramName);
+        } else {
+            String segment = segments.get(depth);
+            if (parameterName(segment) != null) {
+                if (node.paramChild == null) {
+                    return node;
+                }
+                Node child = delete(node.paramChild, segments, depth + 1);
+                updated = new Node(node.servlet, node.children, child, child == null ? null : node.paramName);
+            } else {
+                Node existing = node.children.get(segment);
+                if (existing == null) {
+                    return node;
+                }
+                Node child = delete(existing, segments, depth + 1);
+                Map<String, Node> children = new HashMap<>(node.children);
+                if (child == null) {
+                    children.remove(segment);
+                } else {
+                    children.put(segment, child);
+                }
+                updated = new Node(node.servlet, Collections.unmodifiableMap(children), node.paramChild, node.paramName);
+            }
+        }
+        return updated.isEmpty() ? null : updated;
+    }
+
+    private static String parameterName(String segment) {
+        if (segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}")) {
+            return segment.substring(1, segment.length() - 1);
+        }
+        return null;
+    }
+
+    private static List<String> segmentsOf(String uri) {
+        // Registered paths are split exactly like request URIs; a query string is ignored
+        return Arrays.asList(RequestParser.parseUri(uri, new HashMap<String, String>()));
+    }
+}